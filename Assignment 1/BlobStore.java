@@ -0,0 +1,200 @@
+/**
+ * BlobStore Class
+ *
+ * Content addressed storage for cached objects. Each distinct body is stored once,
+ * named by the SHA-256 of its bytes, in a two level fan-out of 256 x 256 directories:
+ * <root>/<h0h1>/<h2h3>/<hash>. Catalog entries refer to blobs by hash, and a blob
+ * is deleted when the last entry referring to it is replaced.
+ *
+ * Reference counts are not persisted; they are rebuilt from the catalog on startup,
+ * and blobs the catalog does not refer to are swept away then.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class BlobStore {
+    /**
+     * The location of the blobs
+     */
+    private String root;
+
+    /**
+     * The location for partially downloaded blobs, on the same file system as root
+     */
+    private String tempRoot;
+
+    /**
+     * Number of catalog entries referring to each blob
+     */
+    private HashMap<String, Integer> refs;
+
+    /**
+     * Shard directories known to exist
+     */
+    private HashSet<String> directories;
+
+    /**
+     * Create a blob store
+     * @param root the directory to store blobs in
+     */
+    public BlobStore(String root) {
+        this.root = root;
+        tempRoot = root + "/.tmp";
+        refs = new HashMap<String, Integer>();
+        directories = new HashSet<String>();
+    }
+
+    /**
+     * Get the path of a blob
+     * @param hash the content hash
+     * @returns String the file path
+     */
+    public String getPath(String hash) {
+        return root + "/" + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
+    }
+
+    /**
+     * Create a file to download a blob into before its hash is known
+     * @returns File the new, empty temporary file
+     * @throws UrlCacheException if the file cannot be created
+     */
+    public File createTempFile() throws UrlCacheException {
+        try {
+            ensureDirectory(tempRoot);
+            return File.createTempFile("object", ".part", new File(tempRoot));
+        } catch (IOException e) {
+            throw new UrlCacheException("Cannot create temporary file in " + tempRoot + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Delete the partial downloads left behind by a crash
+     */
+    public void cleanTempFiles() {
+        File[] partial = new File(tempRoot).listFiles();
+        if (partial != null) {
+            for (File f : partial) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Move a complete download into the store and add a reference to it.
+     * If a blob with the same content is already stored the download is dropped.
+     * The move is atomic, so readers see either no blob or the complete blob.
+     * @param temp the downloaded file from createTempFile()
+     * @param hash the content hash of the file
+     * @returns String the path of the blob
+     * @throws UrlCacheException if the file cannot be moved into place
+     */
+    public synchronized String store(File temp, String hash) throws UrlCacheException {
+        String path = getPath(hash);
+        File blob = new File(path);
+        if (blob.isFile()) {
+            // identical content is already stored
+            temp.delete();
+        } else {
+            try {
+                ensureDirectory(path.substring(0, path.lastIndexOf('/')));
+                Files.move(temp.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                temp.delete();
+                throw new UrlCacheException("The cache file at " + path + " cannot be updated: " + e.toString());
+            }
+        }
+        addReference(hash);
+        return path;
+    }
+
+    /**
+     * Record that a catalog entry refers to a blob
+     * @param hash the content hash
+     */
+    public synchronized void addReference(String hash) {
+        Integer count = refs.get(hash);
+        refs.put(hash, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Drop a reference to a blob, deleting it when no catalog entry refers to it anymore
+     * @param hash the content hash
+     */
+    public synchronized void release(String hash) {
+        Integer count = refs.get(hash);
+        if (count == null || count <= 1) {
+            refs.remove(hash);
+            new File(getPath(hash)).delete();
+        } else {
+            refs.put(hash, count - 1);
+        }
+    }
+
+    /**
+     * Delete every stored blob without a reference, eg. one stored just before a crash
+     * that was never written to the catalog. Call it once the references of the loaded
+     * catalog have been added, before any new downloads start.
+     * @returns int the number of blobs deleted
+     */
+    public synchronized int sweep() {
+        int deleted = 0;
+        File[] outer = new File(root).listFiles();
+        if (outer == null) {
+            return 0;
+        }
+        for (File dir : outer) {
+            // only the two level fan-out holds blobs, skipping tempRoot
+            if (dir.getName().length() != 2 || !dir.isDirectory()) {
+                continue;
+            }
+            File[] inner = dir.listFiles();
+            if (inner == null) {
+                continue;
+            }
+            for (File sub : inner) {
+                File[] files = sub.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File f : files) {
+                    if (!refs.containsKey(f.getName()) && f.delete()) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Get the number of distinct blobs referred to by the catalog
+     * @returns int the number of blobs
+     */
+    public synchronized int size() {
+        return refs.size();
+    }
+
+    /**
+     * Make sure a directory exists. Each directory is checked on the file system once.
+     * @param dir the directory path
+     * @throws UrlCacheException if the directory cannot be created
+     */
+    private synchronized void ensureDirectory(String dir) throws UrlCacheException {
+        if (!directories.contains(dir)) {
+            File f = new File(dir);
+            if (!f.mkdirs() && !f.isDirectory()) {
+                throw new UrlCacheException("Cannot create cache directory: " + dir);
+            }
+            directories.add(dir);
+        }
+    }
+}
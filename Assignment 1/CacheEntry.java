@@ -0,0 +1,286 @@
+/**
+ * CacheEntry Class
+ *
+ * A catalog record for one cached object. It keeps the Last-Modified validator
+ * along with the information needed to decide whether the object is still fresh
+ * (Cache-Control max-age, Expires, Date and Age), following the age and freshness
+ * calculations of RFC 7234 section 4.2.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.Serializable;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+public class CacheEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Fraction of (Date - Last-Modified) used as a heuristic freshness lifetime
+     */
+    private static final double HEURISTIC_FRACTION = 0.1;
+
+    /**
+     * Upper bound on a heuristic freshness lifetime (ms)
+     */
+    private static final long MAX_HEURISTIC_LIFETIME = 24L * 60 * 60 * 1000;
+
+    /**
+     * The Last-Modified time of the object (ms since jan 1, 1970), 0 if the origin sent none
+     */
+    private long lastModified;
+
+    /**
+     * The Date of the response according to the origin (ms), or the response time if not sent
+     */
+    private long date;
+
+    /**
+     * Local time the request that produced this response was sent (ms)
+     */
+    private long requestTime;
+
+    /**
+     * Local time the response was received (ms)
+     */
+    private long responseTime;
+
+    /**
+     * The Age header value (ms)
+     */
+    private long ageValue;
+
+    /**
+     * How long the response stays fresh after it was generated (ms)
+     */
+    private long freshnessLifetime;
+
+    /**
+     * The stored Cache-Control and Expires header values, null if not sent.
+     * A 304 only carries the headers that changed, so these are kept between updates.
+     */
+    private String cacheControl;
+    private String expires;
+
+    /**
+     * True if the origin forbids using the response once it is stale
+     * (must-revalidate, proxy-revalidate, no-cache or no-store)
+     */
+    private boolean mustRevalidate;
+
+    /**
+     * Number of times the entry was used from the cache
+     */
+    private int hits;
+
+    /**
+     * Content hash of the stored body in the BlobStore, null until it is stored
+     */
+    private String blob;
+
+    /**
+     * Create a catalog entry from the headers of a 200 response
+     * @param headers the response headers, keyed by lower case name
+     * @param requestTime local time the request was sent
+     * @param responseTime local time the response headers were received
+     */
+    public CacheEntry(HashMap<String, String> headers, long requestTime, long responseTime) {
+        lastModified = 0L;
+        update(headers, requestTime, responseTime);
+    }
+
+    /**
+     * Create a copy of an entry, eg. to write it out while the original keeps changing
+     * @param other the entry to copy
+     */
+    public CacheEntry(CacheEntry other) {
+        lastModified = other.lastModified;
+        date = other.date;
+        requestTime = other.requestTime;
+        responseTime = other.responseTime;
+        ageValue = other.ageValue;
+        freshnessLifetime = other.freshnessLifetime;
+        cacheControl = other.cacheControl;
+        expires = other.expires;
+        mustRevalidate = other.mustRevalidate;
+        hits = other.hits;
+        blob = other.blob;
+    }
+
+    /**
+     * Refresh the freshness information of the entry from a new response (200 or 304).
+     * The Last-Modified validator is only replaced if the response carries one.
+     * @param headers the response headers, keyed by lower case name
+     * @param requestTime local time the request was sent
+     * @param responseTime local time the response headers were received
+     */
+    public void update(HashMap<String, String> headers, long requestTime, long responseTime) {
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+
+        long lm = parseHttpDate(headers.get("last-modified"));
+        if (lm > 0) {
+            lastModified = lm;
+        }
+
+        date = parseHttpDate(headers.get("date"));
+        if (date <= 0) {
+            date = responseTime;
+        }
+
+        ageValue = 0L;
+        if (headers.containsKey("age")) {
+            try {
+                ageValue = Math.max(0L, Long.parseLong(headers.get("age").trim())) * 1000;
+            } catch (NumberFormatException e) {
+                // a malformed Age is ignored
+            }
+        }
+
+        if (headers.containsKey("cache-control")) {
+            cacheControl = headers.get("cache-control");
+        }
+        if (headers.containsKey("expires")) {
+            expires = headers.get("expires");
+        }
+
+        freshnessLifetime = computeFreshnessLifetime();
+    }
+
+    /**
+     * Work out the freshness lifetime from the stored headers: max-age takes precedence
+     * over Expires, and a heuristic based on Last-Modified is used when neither is present
+     * @returns long the freshness lifetime in ms
+     */
+    private long computeFreshnessLifetime() {
+        String cc = cacheControl;
+        mustRevalidate = false;
+        if (cc != null) {
+            long maxAge = -1L;
+            for (String directive : cc.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("must-revalidate") || directive.equals("proxy-revalidate")) {
+                    mustRevalidate = true;
+                } else if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    // every use has to be revalidated with the origin
+                    mustRevalidate = true;
+                    return 0L;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring(8).replace("\"", "").trim());
+                    } catch (NumberFormatException e) {
+                        // a malformed max-age makes the response stale
+                        return 0L;
+                    }
+                }
+            }
+            if (maxAge >= 0) {
+                return maxAge * 1000;
+            }
+        }
+
+        if (expires != null) {
+            // an invalid Expires (eg. "0") means already expired
+            return Math.max(0L, parseHttpDate(expires) - date);
+        }
+
+        if (lastModified > 0 && date > lastModified) {
+            return Math.min(MAX_HEURISTIC_LIFETIME, (long) ((date - lastModified) * HEURISTIC_FRACTION));
+        }
+
+        return 0L;
+    }
+
+    /**
+     * Get the current age of the cached response
+     * @param now the current local time (ms)
+     * @returns long the age in ms
+     */
+    public long getCurrentAge(long now) {
+        long apparentAge = Math.max(0L, responseTime - date);
+        long correctedAgeValue = ageValue + (responseTime - requestTime);
+        long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        return correctedInitialAge + (now - responseTime);
+    }
+
+    /**
+     * Check whether the cached response can be used without contacting the origin
+     * @param now the current local time (ms)
+     * @returns boolean true if the response is fresh
+     */
+    public boolean isFresh(long now) {
+        return freshnessLifetime > getCurrentAge(now);
+    }
+
+    /**
+     * Check whether the cached response may be served while it is stale (and being revalidated)
+     * @param now the current local time (ms)
+     * @param maxStale how long past its freshness lifetime a response may be served (ms)
+     * @returns boolean true if the response is at most maxStale past its lifetime and the origin allows it
+     */
+    public boolean isUsableStale(long now, long maxStale) {
+        return !mustRevalidate && getCurrentAge(now) < freshnessLifetime + maxStale;
+    }
+
+    /**
+     * Record a use of the cached response
+     * @returns int the number of uses so far
+     */
+    public int hit() {
+        return ++hits;
+    }
+
+    /**
+     * Get the Last-Modified time
+     * @returns long the Last-Modified time as ms since jan 1, 1970, 0 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Get the freshness lifetime
+     * @returns long the freshness lifetime in ms
+     */
+    public long getFreshnessLifetime() {
+        return freshnessLifetime;
+    }
+
+    /**
+     * Get the content hash of the stored body
+     * @returns String the BlobStore hash, or null if the body is not stored
+     */
+    public String getBlob() {
+        return blob;
+    }
+
+    /**
+     * Set the content hash of the stored body
+     * @param blob the BlobStore hash
+     */
+    public void setBlob(String blob) {
+        this.blob = blob;
+    }
+
+    /**
+     * Parse an HTTP date (RFC 1123 format)
+     * @param value the header value, may be null
+     * @returns long ms since jan 1, 1970, or -1 if the value is missing or cannot be parsed
+     */
+    public static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1L;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT+0000"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1L;
+        }
+    }
+}
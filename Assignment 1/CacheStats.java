@@ -0,0 +1,387 @@
+/**
+ * CacheStats Class
+ *
+ * Counters and timings for a UrlCache: how requests were answered, how many bytes
+ * came from the origin and from the cache, and how long each phase of an origin
+ * exchange took. All methods are thread safe.
+ *
+ * The counters cover requests made by callers; background revalidations only add
+ * to the timings.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class CacheStats {
+    /**
+     * Latency histogram with power of two buckets in microseconds. Bucket i counts
+     * samples below 2^i us (bucket 0 also takes 0 us), the last bucket everything above.
+     */
+    public static class Histogram {
+        /**
+         * Number of buckets, the last one is unbounded (2^30 us is about 18 minutes)
+         */
+        private static final int BUCKETS = 32;
+
+        /**
+         * Sample count per bucket
+         */
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * Number of samples, their sum and the largest one (us)
+         */
+        private AtomicLong count = new AtomicLong();
+        private AtomicLong sum = new AtomicLong();
+        private AtomicLong max = new AtomicLong();
+
+        /**
+         * Record one sample
+         * @param nanos the duration (ns)
+         */
+        public void record(long nanos) {
+            long micros = Math.max(0L, nanos / 1000L);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long m;
+            while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+                // another thread raised the maximum, check again
+            }
+        }
+
+        /**
+         * Get the number of samples
+         * @returns long the number of samples
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Get the mean of the samples
+         * @returns long the mean (us), 0 without samples
+         */
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0L : sum.get() / n;
+        }
+
+        /**
+         * Get the largest sample
+         * @returns long the largest sample (us)
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Get an upper bound for a percentile of the samples
+         * @param p the percentile, eg. 0.99
+         * @returns long the upper bound of the bucket holding the percentile (us), 0 without samples
+         */
+        public long getPercentile(double p) {
+            long n = count.get();
+            if (n == 0) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Return a summary of the samples
+         * @returns String count, mean, p50, p99 and max
+         */
+        public String toString() {
+            return "n=" + getCount() + " mean=" + getMean() + "us p50<=" + getPercentile(0.5)
+                + "us p99<=" + getPercentile(0.99) + "us max=" + getMax() + "us";
+        }
+    }
+
+    /**
+     * Requests answered from a fresh cached copy
+     */
+    private AtomicLong freshHits = new AtomicLong();
+
+    /**
+     * Requests answered from a stale cached copy while it was revalidated in the background
+     */
+    private AtomicLong staleHits = new AtomicLong();
+
+    /**
+     * Cached copies confirmed by the origin (304)
+     */
+    private AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * Objects downloaded in full (200)
+     */
+    private AtomicLong downloads = new AtomicLong();
+
+    /**
+     * Requests whose origin response was passed on without being cached
+     */
+    private AtomicLong forwards = new AtomicLong();
+
+    /**
+     * Requests answered from a remembered failure without contacting the origin
+     */
+    private AtomicLong negativeHits = new AtomicLong();
+
+    /**
+     * Failed requests, including negative hits
+     */
+    private AtomicLong errors = new AtomicLong();
+
+    /**
+     * Cached objects dropped: replaced by a newer download or found missing on disk
+     */
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Body bytes downloaded from origins
+     */
+    private AtomicLong bytesFetched = new AtomicLong();
+
+    /**
+     * Bytes of cached copies used without downloading them
+     */
+    private AtomicLong bytesServed = new AtomicLong();
+
+    /**
+     * Time to get a connection to the origin, from the pool or newly opened
+     */
+    private Histogram connect = new Histogram();
+
+    /**
+     * Time from sending the request to reading the response head
+     */
+    private Histogram firstByte = new Histogram();
+
+    /**
+     * Time to read the response body
+     */
+    private Histogram body = new Histogram();
+
+    /**
+     * Count a request answered from a fresh cached copy
+     * @param bytes the size of the cached copy
+     */
+    public void freshHit(long bytes) {
+        freshHits.incrementAndGet();
+        bytesServed.addAndGet(bytes);
+    }
+
+    /**
+     * Count a request answered from a stale cached copy
+     * @param bytes the size of the cached copy
+     */
+    public void staleHit(long bytes) {
+        staleHits.incrementAndGet();
+        bytesServed.addAndGet(bytes);
+    }
+
+    /**
+     * Count a cached copy confirmed by the origin
+     * @param bytes the size of the cached copy
+     */
+    public void revalidated(long bytes) {
+        revalidations.incrementAndGet();
+        bytesServed.addAndGet(bytes);
+    }
+
+    /**
+     * Count a full download
+     * @param bytes the size of the body
+     */
+    public void downloaded(long bytes) {
+        downloads.incrementAndGet();
+        bytesFetched.addAndGet(bytes);
+    }
+
+    /**
+     * Count an origin response passed on without being cached, eg. an error status
+     * @param bytes the size of the body
+     */
+    public void forwarded(long bytes) {
+        forwards.incrementAndGet();
+        bytesFetched.addAndGet(bytes);
+    }
+
+    /**
+     * Count a request answered from a remembered failure, in addition to error()
+     */
+    public void negativeHit() {
+        negativeHits.incrementAndGet();
+    }
+
+    /**
+     * Count a failed request
+     */
+    public void error() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Count a dropped cached object
+     */
+    public void evicted() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Get the fresh hit count
+     * @returns long requests answered from a fresh cached copy
+     */
+    public long getFreshHits() {
+        return freshHits.get();
+    }
+
+    /**
+     * Get the stale hit count
+     * @returns long requests answered from a stale cached copy
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * Get the revalidation count
+     * @returns long cached copies confirmed by the origin
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Get the download count
+     * @returns long objects downloaded in full
+     */
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    /**
+     * Get the forward count
+     * @returns long origin responses passed on without being cached
+     */
+    public long getForwards() {
+        return forwards.get();
+    }
+
+    /**
+     * Get the negative hit count
+     * @returns long requests answered from a remembered failure
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Get the error count
+     * @returns long failed requests
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Get the eviction count
+     * @returns long cached objects dropped
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the bytes downloaded from origins
+     * @returns long body bytes downloaded
+     */
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    /**
+     * Get the bytes used from the cache
+     * @returns long bytes of cached copies used without downloading them
+     */
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    /**
+     * Get the number of requests
+     * @returns long every counted request, successful or not
+     */
+    public long getRequests() {
+        return freshHits.get() + staleHits.get() + revalidations.get() + downloads.get() + forwards.get() + errors.get();
+    }
+
+    /**
+     * Get the share of requests answered without contacting the origin
+     * @returns double fresh and stale hits per request, 0 without requests
+     */
+    public double getHitRatio() {
+        long requests = getRequests();
+        return requests == 0 ? 0.0 : (double) (freshHits.get() + staleHits.get()) / requests;
+    }
+
+    /**
+     * Get the share of bytes that did not have to be downloaded
+     * @returns double bytes served from the cache per byte delivered, 0 without traffic
+     */
+    public double getByteHitRatio() {
+        long served = bytesServed.get();
+        long total = served + bytesFetched.get();
+        return total == 0 ? 0.0 : (double) served / total;
+    }
+
+    /**
+     * Get the connection time histogram
+     * @returns Histogram time to get a connection to the origin
+     */
+    public Histogram getConnectTimes() {
+        return connect;
+    }
+
+    /**
+     * Get the time to first byte histogram
+     * @returns Histogram time from sending the request to reading the response head
+     */
+    public Histogram getFirstByteTimes() {
+        return firstByte;
+    }
+
+    /**
+     * Get the body time histogram
+     * @returns Histogram time to read the response body
+     */
+    public Histogram getBodyTimes() {
+        return body;
+    }
+
+    /**
+     * Return a multi-line report of all counters and timings
+     * @returns String the report
+     */
+    public String toString() {
+        return String.format("requests=%d fresh=%d stale=%d revalidated=%d downloaded=%d forwarded=%d errors=%d (negative=%d) evictions=%d%n"
+            + "hit ratio=%.3f byte hit ratio=%.3f fetched=%d bytes served=%d bytes%n"
+            + "connect: %s%nttfb: %s%nbody: %s",
+            getRequests(), getFreshHits(), getStaleHits(), getRevalidations(), getDownloads(), getForwards(), getErrors(),
+            getNegativeHits(), getEvictions(), getHitRatio(), getByteHitRatio(), getBytesFetched(),
+            getBytesServed(), connect, firstByte, body);
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * ConnectionPool Class
+ *
+ * Keeps persistent HttpConnections per origin so consecutive requests to the same
+ * host skip DNS resolution and TCP setup. The number of connections per origin is
+ * capped, and connections left idle for too long are closed.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+public class ConnectionPool {
+    /**
+     * Idle connections per origin, most recently used last
+     */
+    private HashMap<String, ArrayDeque<HttpConnection>> idle;
+
+    /**
+     * Number of open connections (idle or in use) per origin
+     */
+    private HashMap<String, Integer> open;
+
+    /**
+     * Maximum number of connections per origin
+     */
+    private int maxPerHost;
+
+    /**
+     * Time after which an idle connection is closed (ms)
+     */
+    private long idleTimeout;
+
+    /**
+     * Timeouts for connecting to an origin and for each read from it (ms)
+     */
+    private int connectTimeout;
+    private int readTimeout;
+
+    /**
+     * Resolver for the origin host names
+     */
+    private DnsCache dns;
+
+    /**
+     * Create a pool
+     * @param maxPerHost maximum number of connections per origin
+     * @param idleTimeout time after which an idle connection is closed (ms)
+     * @param connectTimeout how long to wait for an origin to accept a connection (ms)
+     * @param readTimeout how long a read may wait for an origin (ms)
+     * @param dns resolver for the origin host names
+     */
+    public ConnectionPool(int maxPerHost, long idleTimeout, int connectTimeout, int readTimeout, DnsCache dns) {
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.dns = dns;
+        idle = new HashMap<String, ArrayDeque<HttpConnection>>();
+        open = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Get a connection to an origin, reusing an idle one when possible.
+     * Blocks while the origin already has the maximum number of connections in use.
+     * @param host the origin host name
+     * @param port the origin port
+     * @returns HttpConnection a connection that the caller owns until release()
+     * @throws IOException if a new connection cannot be established
+     */
+    public HttpConnection acquire(String host, int port) throws IOException {
+        return acquire(host, port, false);
+    }
+
+    /**
+     * Get a new connection to an origin, never an idle one, eg. to retry a request
+     * that failed on a pooled connection the origin had closed. When the origin is at
+     * the connection limit an idle connection is closed to make room, since it may be
+     * just as stale. Blocks while all of the origin's connections are in use.
+     * @param host the origin host name
+     * @param port the origin port
+     * @returns HttpConnection a connection that the caller owns until release()
+     * @throws IOException if a new connection cannot be established
+     */
+    public HttpConnection acquireNew(String host, int port) throws IOException {
+        return acquire(host, port, true);
+    }
+
+    /**
+     * Get a connection to an origin
+     * @param host the origin host name
+     * @param port the origin port
+     * @param fresh true to always open a new connection
+     * @returns HttpConnection a connection that the caller owns until release()
+     * @throws IOException if a new connection cannot be established
+     */
+    private HttpConnection acquire(String host, int port, boolean fresh) throws IOException {
+        String key = host + ":" + port;
+        synchronized (this) {
+            evictIdle();
+            while (true) {
+                ArrayDeque<HttpConnection> conns = idle.get(key);
+                if (conns != null && !conns.isEmpty()) {
+                    if (!fresh) {
+                        return conns.pollLast();
+                    }
+                    if (openCount(key) >= maxPerHost) {
+                        // the oldest idle connection is the most likely to be stale
+                        conns.pollFirst().close();
+                        open.put(key, openCount(key) - 1);
+                    }
+                }
+                if (openCount(key) < maxPerHost) {
+                    // reserve the slot, connect outside the lock
+                    open.put(key, openCount(key) + 1);
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a connection to " + key);
+                }
+            }
+        }
+
+        try {
+            return new HttpConnection(host, dns.resolve(host), port, connectTimeout, readTimeout);
+        } catch (IOException e) {
+            synchronized (this) {
+                open.put(key, openCount(key) - 1);
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return a connection to the pool. Connections that cannot carry another request are closed.
+     * @param conn the connection obtained from acquire()
+     */
+    public synchronized void release(HttpConnection conn) {
+        if (conn.isReusable()) {
+            conn.touch();
+            ArrayDeque<HttpConnection> conns = idle.get(conn.getKey());
+            if (conns == null) {
+                conns = new ArrayDeque<HttpConnection>();
+                idle.put(conn.getKey(), conns);
+            }
+            conns.addLast(conn);
+        } else {
+            conn.close();
+            open.put(conn.getKey(), openCount(conn.getKey()) - 1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close every idle connection
+     */
+    public synchronized void closeAll() {
+        for (ArrayDeque<HttpConnection> conns : idle.values()) {
+            for (HttpConnection conn : conns) {
+                conn.close();
+                open.put(conn.getKey(), openCount(conn.getKey()) - 1);
+            }
+            conns.clear();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close the idle connections that exceeded the idle timeout
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (ArrayDeque<HttpConnection> conns : idle.values()) {
+            Iterator<HttpConnection> i = conns.iterator();
+            while (i.hasNext()) {
+                HttpConnection conn = i.next();
+                if (now - conn.getLastUsed() > idleTimeout || !conn.isReusable()) {
+                    i.remove();
+                    conn.close();
+                    open.put(conn.getKey(), openCount(conn.getKey()) - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of open connections to an origin
+     * @param key the origin "host:port"
+     * @returns int the number of connections
+     */
+    private int openCount(String key) {
+        Integer count = open.get(key);
+        return count == null ? 0 : count;
+    }
+}
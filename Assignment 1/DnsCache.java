@@ -0,0 +1,199 @@
+/**
+ * DnsCache Class
+ *
+ * Caches host name lookups for origin connections. Successful lookups are kept for
+ * a fixed time and failed lookups for a shorter one. Hosts can also be mapped to
+ * addresses statically, in hosts file format, so the cache works without a resolver.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+public class DnsCache {
+    /**
+     * The result of one lookup
+     */
+    private static class Lookup {
+        /** the addresses of the host, null if the lookup failed */
+        InetAddress[] addresses;
+        /** time after which the host is looked up again (ms since jan 1, 1970) */
+        long expires;
+    }
+
+    /**
+     * Addresses of statically mapped hosts, never expire
+     */
+    private HashMap<String, InetAddress[]> hosts;
+
+    /**
+     * Cached lookups, keyed by lower case host name
+     */
+    private HashMap<String, Lookup> lookups;
+
+    /**
+     * Time a successful lookup is kept (ms)
+     */
+    private long ttl;
+
+    /**
+     * Time a failed lookup is kept (ms)
+     */
+    private long negativeTtl;
+
+    /**
+     * Number of cached lookups above which expired ones are purged
+     */
+    private final int maxLookups = 1024;
+
+    /**
+     * Create an empty cache
+     * @param ttl time a successful lookup is kept (ms)
+     * @param negativeTtl time a failed lookup is kept (ms)
+     */
+    public DnsCache(long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        hosts = new HashMap<String, InetAddress[]>();
+        lookups = new HashMap<String, Lookup>();
+    }
+
+    /**
+     * Get the addresses of a host, in the order they should be tried
+     * @param host the host name or address literal
+     * @returns InetAddress[] the addresses, at least one
+     * @throws UnknownHostException if the host cannot be resolved (now or in a recent lookup)
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String name = host.toLowerCase();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            InetAddress[] mapped = hosts.get(name);
+            if (mapped != null) {
+                return mapped;
+            }
+            Lookup cached = lookups.get(name);
+            if (cached != null && cached.expires > now) {
+                if (cached.addresses == null) {
+                    throw new UnknownHostException(host);
+                }
+                return cached.addresses;
+            }
+        }
+
+        // look the host up outside the lock, concurrent lookups of other hosts go ahead
+        Lookup lookup = new Lookup();
+        try {
+            lookup.addresses = InetAddress.getAllByName(host);
+            lookup.expires = now + ttl;
+        } catch (UnknownHostException e) {
+            lookup.expires = now + negativeTtl;
+        }
+        synchronized (this) {
+            if (lookups.size() >= maxLookups) {
+                purge(now);
+            }
+            lookups.put(name, lookup);
+        }
+        if (lookup.addresses == null) {
+            throw new UnknownHostException(host);
+        }
+        return lookup.addresses;
+    }
+
+    /**
+     * Map a host to fixed addresses, replacing any earlier mapping
+     * @param host the host name
+     * @param addresses the address literals, eg. "127.0.0.1" or "::1"
+     * @throws UnknownHostException if an address is not a valid literal
+     */
+    public synchronized void addHost(String host, String... addresses) throws UnknownHostException {
+        InetAddress[] mapped = new InetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            mapped[i] = parseAddress(host, addresses[i]);
+        }
+        hosts.put(host.toLowerCase(), mapped);
+    }
+
+    /**
+     * Add the mappings of a hosts file: lines of "address name [name...]", "#" starts a comment.
+     * A name listed on several lines gets all of their addresses, in file order.
+     * @param path the file path
+     * @throws IOException if the file cannot be read or has an invalid address
+     */
+    public void loadHosts(String path) throws IOException {
+        HashMap<String, ArrayList<String>> names = new HashMap<String, ArrayList<String>>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                for (int i = 1; i < fields.length; i++) {
+                    ArrayList<String> addresses = names.get(fields[i]);
+                    if (addresses == null) {
+                        addresses = new ArrayList<String>();
+                        names.put(fields[i], addresses);
+                    }
+                    addresses.add(fields[0]);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        for (String name : names.keySet()) {
+            try {
+                addHost(name, names.get(name).toArray(new String[0]));
+            } catch (UnknownHostException e) {
+                throw new IOException("Bad address for " + name + " in " + path);
+            }
+        }
+    }
+
+    /**
+     * Forget every cached lookup; static mappings are kept
+     */
+    public synchronized void clear() {
+        lookups.clear();
+    }
+
+    /**
+     * Remove the expired lookups
+     * @param now the current time (ms since jan 1, 1970)
+     */
+    private void purge(long now) {
+        Iterator<Lookup> i = lookups.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().expires <= now) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Parse an address literal without a lookup
+     * @param host the host name to attach to the address
+     * @param literal the IPv4 or IPv6 address
+     * @returns InetAddress the address
+     * @throws UnknownHostException if the literal is not an address
+     */
+    private static InetAddress parseAddress(String host, String literal) throws UnknownHostException {
+        // getByName does not query the resolver for something that starts like an address
+        if (literal.indexOf(':') < 0 && !literal.matches("^[0-9.]+$")) {
+            throw new UnknownHostException("Not an address: " + literal);
+        }
+        return InetAddress.getByAddress(host, InetAddress.getByName(literal).getAddress());
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * FetchResult Class
+ *
+ * The outcome of fetching one URL through UrlCache.getObjects or getObjectAsync.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+public class FetchResult {
+    /**
+     * What happened to the object
+     */
+    public enum Outcome {
+        /** the cached copy was fresh, the origin was not contacted */
+        FRESH,
+        /** a stale cached copy was used and is being revalidated in the background */
+        STALE,
+        /** the origin confirmed the cached copy (304) */
+        REVALIDATED,
+        /** the object was downloaded into the cache */
+        DOWNLOADED,
+        /** the origin's response was passed on by UrlCache.forwardObject without being cached */
+        FORWARDED,
+        /** the fetch failed, see getError() */
+        FAILED
+    }
+
+    /**
+     * The requested url
+     */
+    private String url;
+
+    /**
+     * The outcome
+     */
+    private Outcome outcome;
+
+    /**
+     * The error for a failed fetch, null otherwise
+     */
+    private UrlCacheException error;
+
+    /**
+     * Create a result for a successful fetch
+     * @param url the requested url
+     * @param outcome what happened to the object
+     */
+    public FetchResult(String url, Outcome outcome) {
+        this.url = url;
+        this.outcome = outcome;
+    }
+
+    /**
+     * Create a result for a failed fetch
+     * @param url the requested url
+     * @param error the reason it failed
+     */
+    public FetchResult(String url, UrlCacheException error) {
+        this.url = url;
+        this.outcome = Outcome.FAILED;
+        this.error = error;
+    }
+
+    /**
+     * Get the requested url
+     * @returns String the url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the outcome
+     * @returns Outcome what happened to the object
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Get the error of a failed fetch
+     * @returns UrlCacheException the error, or null if the fetch succeeded
+     */
+    public UrlCacheException getError() {
+        return error;
+    }
+
+    /**
+     * Return a string representation of the result
+     * @returns String the string representation
+     */
+    public String toString() {
+        return url + ": " + outcome + (error == null ? "" : " (" + error.getMessage() + ")");
+    }
+}
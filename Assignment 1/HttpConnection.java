@@ -0,0 +1,353 @@
+/**
+ * HttpConnection Class
+ *
+ * A persistent HTTP/1.1 connection to an origin server. Responses are read with
+ * their body framing (Content-Length, chunked, or until close) so the connection
+ * can be handed back to a ConnectionPool and reused for the next request.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+public class HttpConnection {
+    /**
+     * The socket to the origin
+     */
+    private Socket sock;
+
+    /**
+     * Buffered streams for socket IO
+     */
+    private InputStream in;
+    private OutputStream out;
+
+    /**
+     * Buffer for copying bodies in bulk
+     */
+    private byte[] copyBuffer;
+
+    /**
+     * The pool key of the origin ("host:port")
+     */
+    private String key;
+
+    /**
+     * Number of requests sent over this connection
+     */
+    private int requests;
+
+    /**
+     * Local time the connection was last returned to the pool (ms)
+     */
+    private long lastUsed;
+
+    /**
+     * False once the connection cannot carry another request
+     */
+    private boolean reusable;
+
+    /**
+     * Open a connection to an origin, trying its addresses in order until one accepts
+     * @param host the origin host name
+     * @param addresses the resolved addresses of the host, at least one
+     * @param port the origin port
+     * @param connectTimeout how long to wait for each address to accept (ms), 0 to wait forever
+     * @param readTimeout how long a read may wait for the origin (ms), 0 to wait forever
+     * @throws IOException if no address accepts the connection
+     */
+    public HttpConnection(String host, InetAddress[] addresses, int port, int connectTimeout, int readTimeout) throws IOException {
+        IOException failure = null;
+        for (InetAddress address : addresses) {
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(address, port), connectTimeout);
+                sock = s;
+                break;
+            } catch (IOException e) {
+                s.close();
+                // report the first failure if every address fails
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (sock == null) {
+            throw failure;
+        }
+        sock.setTcpNoDelay(true);
+        sock.setSoTimeout(readTimeout);
+        in = new BufferedInputStream(sock.getInputStream(), 16 * 1024);
+        out = new BufferedOutputStream(sock.getOutputStream());
+        copyBuffer = new byte[64 * 1024];
+        key = host + ":" + port;
+        requests = 0;
+        reusable = true;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Write a complete request head and flush it
+     * @param request the request line and header lines, each ending in "\r\n", followed by "\r\n"
+     * @throws IOException if the write fails
+     */
+    public void sendRequest(String request) throws IOException {
+        requests++;
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * Read one line of the response head, without the line terminator
+     * @returns String the line, or null if the connection was closed before any byte
+     * @throws IOException if the read fails
+     */
+    public String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int i;
+        while ((i = read()) != -1) {
+            if (i == '\n') {
+                // tolerate bare "\n" line endings
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) i);
+        }
+        reusable = false;
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Decide from the response whether the connection can be kept open afterwards
+     * @param version the HTTP version in the status line
+     * @param headers the response headers, keyed by lower case name
+     */
+    public void checkPersistence(String version, HashMap<String, String> headers) {
+        String connection = headers.get("connection");
+        if (connection != null && connection.toLowerCase().contains("close")) {
+            reusable = false;
+        } else if (version.equals("HTTP/1.0") && (connection == null || !connection.toLowerCase().contains("keep-alive"))) {
+            reusable = false;
+        }
+    }
+
+    /**
+     * Read the response body according to its framing and write it into a stream
+     * @param dest where to write the body, or null to discard it
+     * @param statusCode the response status
+     * @param headers the response headers, keyed by lower case name
+     * @returns long the number of body bytes read
+     * @throws IOException if the read or write fails, or the body is truncated
+     */
+    public long readBody(OutputStream dest, int statusCode, HashMap<String, String> headers) throws IOException {
+        // these responses never have a body
+        if (statusCode == 304 || statusCode == 204 || statusCode / 100 == 1) {
+            return 0L;
+        }
+
+        String te = headers.get("transfer-encoding");
+        if (te != null && te.toLowerCase().contains("chunked")) {
+            return readChunked(dest);
+        }
+
+        String cl = headers.get("content-length");
+        if (cl != null) {
+            long length;
+            try {
+                length = Long.parseLong(cl.trim());
+            } catch (NumberFormatException e) {
+                length = -1L;
+            }
+            if (length < 0) {
+                reusable = false;
+                throw new IOException("Bad Content-Length: " + cl);
+            }
+            copy(dest, length);
+            return length;
+        }
+
+        // delimited by the origin closing the connection
+        reusable = false;
+        long count = 0L;
+        int n;
+        while ((n = read(copyBuffer, 0, copyBuffer.length)) != -1) {
+            if (dest != null) {
+                dest.write(copyBuffer, 0, n);
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Decode a chunked body
+     * @param dest where to write the body, or null to discard it
+     * @returns long the number of decoded bytes
+     * @throws IOException if the read or write fails, or the framing is broken
+     */
+    private long readChunked(OutputStream dest) throws IOException {
+        long count = 0L;
+        while (true) {
+            String sizeLine = readLine();
+            if (sizeLine == null) {
+                throw new IOException("Connection closed inside chunked body");
+            }
+            // strip chunk extensions
+            int semi = sizeLine.indexOf(';');
+            if (semi != -1) {
+                sizeLine = sizeLine.substring(0, semi);
+            }
+            long size;
+            try {
+                size = Long.parseLong(sizeLine.trim(), 16);
+            } catch (NumberFormatException e) {
+                reusable = false;
+                throw new IOException("Bad chunk size: " + sizeLine);
+            }
+            if (size == 0) {
+                break;
+            }
+            copy(dest, size);
+            count += size;
+            // CRLF after the chunk data
+            String end = readLine();
+            if (end == null || end.length() > 0) {
+                reusable = false;
+                throw new IOException("Missing CRLF after chunk data");
+            }
+        }
+        // skip the trailer section
+        String trailer;
+        while ((trailer = readLine()) != null && trailer.length() > 0) {
+            // ignored
+        }
+        return count;
+    }
+
+    /**
+     * Copy an exact number of bytes from the connection in buffer-sized blocks.
+     * Once the stream buffer is drained, large reads go straight from the socket
+     * into copyBuffer, so each block costs one read and one write.
+     * @param dest where to write the bytes, or null to discard them
+     * @param length the number of bytes
+     * @throws IOException if the read or write fails, or the connection closes early
+     */
+    private void copy(OutputStream dest, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int n = read(copyBuffer, 0, (int) Math.min(remaining, copyBuffer.length));
+            if (n == -1) {
+                reusable = false;
+                throw new IOException("Connection closed after " + (length - remaining) + " of " + length + " bytes");
+            }
+            if (dest != null) {
+                dest.write(copyBuffer, 0, n);
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Read one byte from the connection. A read that times out leaves the rest of
+     * the response on the wire, so the connection is not reused afterwards.
+     * @returns int the byte, or -1 at the end of the stream
+     * @throws IOException if the read fails or times out
+     */
+    private int read() throws IOException {
+        try {
+            return in.read();
+        } catch (SocketTimeoutException e) {
+            reusable = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Read a block from the connection, see read()
+     * @param b the destination
+     * @param off the start offset in the destination
+     * @param len the maximum number of bytes
+     * @returns int the number of bytes read, -1 at the end of the stream
+     * @throws IOException if the read fails or times out
+     */
+    private int read(byte[] b, int off, int len) throws IOException {
+        try {
+            return in.read(b, off, len);
+        } catch (SocketTimeoutException e) {
+            reusable = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Get the pool key of the origin
+     * @returns String "host:port"
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Check whether this connection has carried a request before
+     * @returns boolean true if at least one earlier request used it
+     */
+    public boolean isReused() {
+        return requests > 1;
+    }
+
+    /**
+     * Check whether the connection can carry another request
+     * @returns boolean true if it can be returned to the pool
+     */
+    public boolean isReusable() {
+        return reusable && !sock.isClosed();
+    }
+
+    /**
+     * Mark the connection as not reusable, eg. after an error mid-response
+     */
+    public void invalidate() {
+        reusable = false;
+    }
+
+    /**
+     * Get the time the connection was last returned to the pool
+     * @returns long ms since jan 1, 1970
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Record that the connection was returned to the pool
+     */
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Close the connection and its streams
+     */
+    public void close() {
+        reusable = false;
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal HTTP/1.1 origin on the loopback interface for benchmarking UrlCache offline.
+ * It keeps connections alive and serves generated bodies for three kinds of path:
+ *   /fresh/SIZE/ID       cacheable for an hour, answered from the cache after the first fetch
+ *   /revalidate/SIZE/ID  no-cache, answered 304 to a conditional request
+ *   /miss/SIZE/ID        no-cache and always 200, downloaded in full every time
+ * A body is its path repeated, so distinct objects are not stored once by the cache.
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+public class LoopbackOrigin extends Thread implements Runnable {
+    /**
+     * Flag set to exit the accept loop
+     */
+    private volatile boolean acceptRequests;
+
+    /**
+     * Thread pool for the connections
+     */
+    private ExecutorService executor;
+
+    /**
+     * The listening socket, bound on construction
+     */
+    private ServerSocket sock;
+
+    /**
+     * Last-Modified value of every object
+     */
+    private static final String LAST_MODIFIED = "Sat, 01 Oct 2016 00:00:00 GMT";
+
+    /**
+     * Default constructor, binds an ephemeral port on 127.0.0.1
+     * @throws IOException if the socket cannot be bound
+     */
+    public LoopbackOrigin () throws IOException {
+        executor = Executors.newCachedThreadPool();
+        sock = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        sock.setSoTimeout(1000);
+        acceptRequests = true;
+        setDaemon(true);
+    }
+
+    /**
+     * Get the port the origin listens on
+     * @returns the port number
+     */
+    public int getPort () {
+        return sock.getLocalPort();
+    }
+
+    /**
+     * The accept-loop
+     */
+    public void run () {
+        try {
+            while (acceptRequests) {
+                try {
+                    final Socket cli = sock.accept();
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            serve(cli);
+                        }
+                    });
+                } catch (SocketTimeoutException e) {
+                    // Check while flag
+                }
+            }
+            sock.close();
+        } catch (IOException e) {
+            if (acceptRequests) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections and close the open ones
+     */
+    public void shutdown () {
+        acceptRequests = false;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // exiting anyway
+        }
+    }
+
+    /**
+     * Answer requests on one connection until the client closes it
+     * @param Socket cli - the client socket
+     */
+    private void serve (Socket cli) {
+        try {
+            cli.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(cli.getInputStream());
+            OutputStream out = new BufferedOutputStream(cli.getOutputStream(), 64 * 1024);
+            byte[] body = new byte[0];
+
+            String request;
+            while ((request = readLine(in)) != null) {
+                boolean conditional = false;
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    if (line.regionMatches(true, 0, "If-modified-since:", 0, 18)) {
+                        conditional = true;
+                    }
+                }
+
+                // GET /kind/size/id HTTP/1.1
+                String[] req = request.split(" ");
+                String[] path = req.length == 3 ? req[1].split("/") : new String[0];
+                int size = -1;
+                try {
+                    size = path.length >= 3 ? Integer.parseInt(path[2]) : -1;
+                } catch (NumberFormatException e) {
+                    // answered with 404
+                }
+
+                StringBuilder head = new StringBuilder();
+                if (size < 0 || !(path[1].equals("fresh") || path[1].equals("revalidate") || path[1].equals("miss"))) {
+                    head.append("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+                    size = 0;
+                } else if (conditional && !path[1].equals("miss")) {
+                    head.append("HTTP/1.1 304 Not Modified\r\n");
+                    head.append(path[1].equals("fresh") ? "Cache-Control: max-age=3600\r\n" : "Cache-Control: no-cache\r\n");
+                    head.append("\r\n");
+                    size = 0;
+                } else {
+                    head.append("HTTP/1.1 200 OK\r\n");
+                    head.append("Last-Modified: ").append(LAST_MODIFIED).append("\r\n");
+                    head.append(path[1].equals("fresh") ? "Cache-Control: max-age=3600\r\n" : "Cache-Control: no-cache\r\n");
+                    head.append("Content-Length: ").append(size).append("\r\n\r\n");
+                }
+                out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+                if (size > 0) {
+                    if (body.length < size) {
+                        body = new byte[size];
+                    }
+                    fill(body, size, req[1]);
+                    out.write(body, 0, size);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            try {
+                cli.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Fill the start of a buffer with a path repeated, doubling the copied run each time
+     * @param byte[] body - the buffer
+     * @param int size - the number of bytes to fill
+     * @param String path - the request path
+     */
+    private static void fill (byte[] body, int size, String path) {
+        byte[] p = path.getBytes(StandardCharsets.ISO_8859_1);
+        int filled = Math.min(p.length, size);
+        System.arraycopy(p, 0, body, 0, filled);
+        while (filled < size) {
+            int n = Math.min(filled, size - filled);
+            System.arraycopy(body, 0, body, filled, n);
+            filled += n;
+        }
+    }
+
+    /**
+     * Read one line of a request head, without the line terminator
+     * @param InputStream in - the client stream
+     * @returns the line, or null if the client closed the connection
+     */
+    private String readLine (InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int i;
+        while ((i = in.read()) != -1) {
+            if (i == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) i);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * MappedFileInputStream Class
+ *
+ * Reads a file through a read-only memory mapping, so the content is copied
+ * straight from the page cache without read system calls. The file descriptor
+ * is closed right away; the mapping stays valid until it is garbage collected.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedFileInputStream extends InputStream {
+    /**
+     * The mapped content, null once closed
+     */
+    private MappedByteBuffer content;
+
+    /**
+     * Map a file. Files of 2 GB or more cannot be mapped in one buffer.
+     * @param path the file path
+     * @throws IOException if the file cannot be opened, is too large, or the mapping fails
+     */
+    public MappedFileInputStream(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read one byte
+     * @returns int the byte, or -1 at the end of the file
+     * @throws IOException if the stream is closed
+     */
+    public int read() throws IOException {
+        MappedByteBuffer b = open();
+        return b.hasRemaining() ? b.get() & 0xff : -1;
+    }
+
+    /**
+     * Read a block
+     * @param dest the destination
+     * @param off the start offset in the destination
+     * @param len the maximum number of bytes
+     * @returns int the number of bytes read, -1 at the end of the file
+     * @throws IOException if the stream is closed
+     */
+    public int read(byte[] dest, int off, int len) throws IOException {
+        MappedByteBuffer b = open();
+        if (len == 0) {
+            return 0;
+        }
+        if (!b.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, b.remaining());
+        b.get(dest, off, n);
+        return n;
+    }
+
+    /**
+     * Skip bytes without copying them
+     * @param n the number of bytes to skip
+     * @returns long the number of bytes skipped
+     * @throws IOException if the stream is closed
+     */
+    public long skip(long n) throws IOException {
+        MappedByteBuffer b = open();
+        int skipped = (int) Math.max(0L, Math.min(n, b.remaining()));
+        b.position(b.position() + skipped);
+        return skipped;
+    }
+
+    /**
+     * Get the number of bytes left
+     * @returns int the bytes left in the file
+     * @throws IOException if the stream is closed
+     */
+    public int available() throws IOException {
+        return open().remaining();
+    }
+
+    /**
+     * Release the mapping for garbage collection
+     */
+    public void close() {
+        content = null;
+    }
+
+    /**
+     * Get the mapping of an open stream
+     * @returns MappedByteBuffer the mapped content
+     * @throws IOException if the stream is closed
+     */
+    private MappedByteBuffer open() throws IOException {
+        if (content == null) {
+            throw new IOException("Stream closed");
+        }
+        return content;
+    }
+}
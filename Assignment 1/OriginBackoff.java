@@ -0,0 +1,111 @@
+/**
+ * OriginBackoff Class
+ *
+ * Per-origin circuit breaker. A few failures in a row are tolerated, after that the
+ * origin is skipped for an exponentially growing delay. Once the delay is over a
+ * single request is let through as a probe: if it succeeds the origin is trusted
+ * again, otherwise the next delay is twice as long.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.util.HashMap;
+
+public class OriginBackoff {
+    /**
+     * Failure state of one origin
+     */
+    private static class State {
+        /** failures since the last success */
+        int failures;
+        /** time before which no request is sent (ms since jan 1, 1970) */
+        long retryAt;
+        /** true while the probe request after a delay is in progress */
+        boolean probing;
+    }
+
+    /**
+     * Origins that have failed since their last success, keyed by "host:port"
+     */
+    private HashMap<String, State> origins;
+
+    /**
+     * Number of failures in a row after which the origin is skipped
+     */
+    private int threshold;
+
+    /**
+     * First delay after the circuit opens (ms)
+     */
+    private long baseDelay;
+
+    /**
+     * Longest delay between probes (ms)
+     */
+    private long maxDelay;
+
+    /**
+     * Create a breaker
+     * @param threshold number of failures in a row after which an origin is skipped
+     * @param baseDelay first delay after the circuit opens (ms)
+     * @param maxDelay longest delay between probes (ms)
+     */
+    public OriginBackoff(int threshold, long baseDelay, long maxDelay) {
+        this.threshold = threshold;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        origins = new HashMap<String, State>();
+    }
+
+    /**
+     * Check whether a request may be sent to an origin. A caller that is allowed must
+     * report the result with success() or failure().
+     * @param key the origin, "host:port"
+     * @param now the current time (ms since jan 1, 1970)
+     * @returns long 0 if the request may be sent, otherwise ms until the next attempt
+     */
+    public synchronized long check(String key, long now) {
+        State state = origins.get(key);
+        if (state == null || state.failures < threshold) {
+            return 0L;
+        }
+        if (now < state.retryAt) {
+            return state.retryAt - now;
+        }
+        if (state.probing) {
+            // someone else is finding out whether the origin is back
+            return Math.max(1L, baseDelay);
+        }
+        state.probing = true;
+        return 0L;
+    }
+
+    /**
+     * Record a successful exchange with an origin
+     * @param key the origin, "host:port"
+     */
+    public synchronized void success(String key) {
+        origins.remove(key);
+    }
+
+    /**
+     * Record a failed exchange with an origin
+     * @param key the origin, "host:port"
+     * @param now the current time (ms since jan 1, 1970)
+     */
+    public synchronized void failure(String key, long now) {
+        State state = origins.get(key);
+        if (state == null) {
+            state = new State();
+            origins.put(key, state);
+        }
+        state.failures++;
+        state.probing = false;
+        if (state.failures >= threshold) {
+            // double the delay for every failure past the threshold
+            int doublings = Math.min(state.failures - threshold, 30);
+            state.retryAt = now + Math.min(maxDelay, baseDelay << doublings);
+        }
+    }
+}
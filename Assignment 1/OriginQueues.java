@@ -0,0 +1,151 @@
+/**
+ * OriginQueues Class
+ *
+ * Runs tasks on a shared worker pool with at most a fixed number running per origin.
+ * Tasks beyond the limit wait in a queue of their origin instead of on a worker, so
+ * a batch aimed at one host cannot occupy every worker waiting for that host's
+ * connections while requests to other hosts sit behind it.
+ *
+ * Once the worker pool is shut down, tasks it rejects are failed through their
+ * rejection handler instead of being run, along with every task still waiting.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public class OriginQueues {
+    /**
+     * Tasks of one origin
+     */
+    private static class Lane {
+        /** number of tasks handed to the workers and not finished yet */
+        int running;
+        /** tasks waiting for one of the running ones to finish */
+        ArrayDeque<Task> waiting = new ArrayDeque<Task>();
+    }
+
+    /**
+     * A task along with what to do if it is never run
+     */
+    private static class Task {
+        /** runs the task, then hands its slot to the next one */
+        Runnable run;
+        /** called instead of the task if the workers reject it, or null */
+        Runnable rejected;
+    }
+
+    /**
+     * Origins with running or waiting tasks, keyed by "host:port"
+     */
+    private HashMap<String, Lane> lanes;
+
+    /**
+     * Maximum number of running tasks per origin
+     */
+    private int maxPerOrigin;
+
+    /**
+     * Create the queues
+     * @param maxPerOrigin maximum number of running tasks per origin
+     */
+    public OriginQueues(int maxPerOrigin) {
+        this.maxPerOrigin = maxPerOrigin;
+        lanes = new HashMap<String, Lane>();
+    }
+
+    /**
+     * Run a task on a worker once its origin has fewer than the maximum number of tasks running
+     * @param origin the origin the task contacts, "host:port"
+     * @param task the task
+     * @param rejected called instead of the task if the workers are shut down before
+     *                 it runs, eg. to fail whoever waits for it; may be null
+     * @param workers the worker pool
+     */
+    public void execute(final String origin, final Runnable task, Runnable rejected, final Executor workers) {
+        Task t = new Task();
+        t.rejected = rejected;
+        t.run = new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    start(origin, finished(origin), workers);
+                }
+            }
+        };
+
+        synchronized (this) {
+            Lane lane = lanes.get(origin);
+            if (lane == null) {
+                lane = new Lane();
+                lanes.put(origin, lane);
+            }
+            if (lane.running >= maxPerOrigin) {
+                lane.waiting.addLast(t);
+                return;
+            }
+            lane.running++;
+        }
+        start(origin, t, workers);
+    }
+
+    /**
+     * Hand a task that holds one of its origin's slots to the workers. If they reject it,
+     * the slot is released and the task is failed, along with the origin's waiting tasks,
+     * since nothing would run them anymore.
+     * @param origin the origin of the task
+     * @param t the task, or null if there is none
+     * @param workers the worker pool
+     */
+    private void start(String origin, Task t, Executor workers) {
+        if (t == null) {
+            return;
+        }
+        try {
+            workers.execute(t.run);
+        } catch (RejectedExecutionException e) {
+            ArrayDeque<Task> stranded;
+            synchronized (this) {
+                Lane lane = lanes.get(origin);
+                stranded = lane.waiting;
+                lane.waiting = new ArrayDeque<Task>();
+                if (--lane.running == 0) {
+                    lanes.remove(origin);
+                }
+            }
+            fail(t);
+            for (Task s : stranded) {
+                fail(s);
+            }
+        }
+    }
+
+    /**
+     * Call the rejection handler of a task that will not run
+     * @param t the task
+     */
+    private void fail(Task t) {
+        if (t.rejected != null) {
+            t.rejected.run();
+        }
+    }
+
+    /**
+     * Record that a task of an origin finished, and take the next waiting one
+     * @param origin the origin of the finished task
+     * @returns Task the next task of the origin, which takes over the slot, or null
+     */
+    private synchronized Task finished(String origin) {
+        Lane lane = lanes.get(origin);
+        Task next = lane.waiting.pollFirst();
+        if (next == null && --lane.running == 0) {
+            lanes.remove(origin);
+        }
+        return next;
+    }
+}
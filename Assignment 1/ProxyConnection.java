@@ -0,0 +1,330 @@
+import java.net.Socket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.Date;
+import java.text.SimpleDateFormat;
+
+/**
+ * A worker class for ProxyServer. Serves one request from the UrlCache: a cached copy
+ * is sent from its file, while a download is streamed to the client as it is written
+ * into the cache.
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+public class ProxyConnection implements Runnable {
+    /**
+     * The client socket
+     */
+    private Socket client;
+
+    /**
+     * The cache to serve the request from
+     */
+    private UrlCache cache;
+
+    /**
+     * Headers that only apply to the connection to the origin and are not passed on
+     */
+    private static final String[] HOP_BY_HOP = {"connection", "keep-alive", "proxy-authenticate",
+        "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "date", "server", "via"};
+
+    /**
+     * Passes the origin's response on to the client. A download is only known to succeed
+     * once the origin answers, so the head is written from the origin's status line and
+     * headers then, and a 502 can still be sent if the fetch fails first.
+     */
+    class ForwardedResponse implements ResponseSink {
+        /**
+         * The client stream
+         */
+        private OutputStream out;
+
+        /**
+         * True once the head has been written
+         */
+        private boolean started = false;
+
+        /**
+         * Default constructor
+         * @param OutputStream out - the client stream
+         */
+        public ForwardedResponse (OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Write the head for the origin's response
+         * @param int statusCode - the origin status code
+         * @param String reason - the origin reason phrase
+         * @param HashMap<String, String> headers - the origin headers
+         * @returns the client stream, for the body
+         */
+        public OutputStream begin (int statusCode, String reason, HashMap<String, String> headers) throws IOException {
+            HashMap<String, String> headersOut = new HashMap<>();
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                if (!Arrays.asList(HOP_BY_HOP).contains(h.getKey())) {
+                    headersOut.put(capitalize(h.getKey()), h.getValue());
+                }
+            }
+            // the body is decoded, so its length is only known from a Content-Length
+            String te = headers.get("transfer-encoding");
+            if (te != null && te.toLowerCase().contains("chunked")) {
+                headersOut.remove("Content-Length");
+            }
+            started = true;
+            out.write(formHead(statusCode, reason.length() > 0 ? reason : null, headersOut).getBytes(StandardCharsets.ISO_8859_1));
+            return out;
+        }
+
+        /**
+         * Check whether the client has been sent anything
+         * @returns true once the head has been written
+         */
+        public boolean isStarted () {
+            return started;
+        }
+    }
+
+    /**
+     * A basic constructor
+     * @param Socket sock - the client socket
+     * @param UrlCache cache - the cache to serve the request from
+     */
+    public ProxyConnection (Socket sock, UrlCache cache) {
+        client = sock;
+        this.cache = cache;
+    }
+
+    /**
+     * The driving function of this worker class
+     */
+    public void run () {
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), 64 * 1024);
+
+            // read the request
+            String request = readLine(in);
+            HashMap<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+
+            // parse the request line
+            String url = null;
+            if (request != null) {
+                String[] req = request.split(" ");
+                if (req.length == 3 && req[0].equals("GET") && req[2].matches("^HTTP/1\\.[01]$")) {
+                    if (req[1].regionMatches(true, 0, "http://", 0, 7)) {
+                        // absolute-form, as sent to a proxy
+                        url = req[1];
+                    } else if (req[1].startsWith("/") && headers.containsKey("host")) {
+                        // origin-form, eg. from a client that treats the proxy as the server
+                        url = "http://" + headers.get("host") + req[1];
+                    }
+                }
+            }
+            if (url == null) {
+                endRequest(out, 400);
+                return;
+            }
+
+            ForwardedResponse body = new ForwardedResponse(out);
+            try {
+                cache.forwardObject(url, body);
+            } catch (UrlCacheException e) {
+                System.out.println("Proxy: " + url + ": " + e.getMessage());
+                if (!body.isStarted()) {
+                    endRequest(out, 502);
+                }
+                // otherwise the body was cut short; closing the connection ends it
+                close(out);
+                return;
+            }
+
+            if (body.isStarted()) {
+                // the origin's response was streamed to the client
+                close(out);
+            } else {
+                // fresh or revalidated: send the cached copy
+                sendFile(out, url);
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Send the cached copy of an object and close the connection
+     * @param OutputStream out - the client stream
+     * @param String url - the requested url
+     */
+    private void sendFile (OutputStream out, String url) throws IOException {
+        String path = cache.getFilePath(url);
+        FileInputStream fis;
+        try {
+            if (path == null) {
+                throw new IOException("Not cached: " + url);
+            }
+            fis = new FileInputStream(path);
+        } catch (IOException e) {
+            // replaced or removed by another request in the meantime
+            endRequest(out, 502);
+            return;
+        }
+
+        HashMap<String, String> headersOut = new HashMap<>();
+        headersOut.put("Content-Length", String.valueOf(new File(path).length()));
+        try {
+            long lm = cache.getLastModified(url);
+            if (lm != 0L) {
+                headersOut.put("Last-Modified", formatDate(lm));
+            }
+        } catch (UrlCacheException e) {
+            // no validator to pass on
+        }
+        out.write(formHead(200, null, headersOut).getBytes(StandardCharsets.ISO_8859_1));
+
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = fis.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        fis.close();
+        close(out);
+    }
+
+    /**
+     * Write a response without a body and close the connection
+     * @param OutputStream out - the client stream
+     * @param int code - the status code
+     */
+    private void endRequest (OutputStream out, int code) throws IOException {
+        HashMap<String, String> headersOut = new HashMap<>();
+        headersOut.put("Content-Length", "0");
+        out.write(formHead(code, null, headersOut).getBytes(StandardCharsets.ISO_8859_1));
+        close(out);
+    }
+
+    /**
+     * Flush the client stream and close the connection
+     * @param OutputStream out - the client stream
+     */
+    private void close (OutputStream out) {
+        try {
+            out.flush();
+            client.close();
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    /**
+     * Form the head of a response
+     * @param int code - the status code
+     * @param String reason - the reason phrase, or null for the standard one
+     * @param HashMap<String, String> extra - additional headers, or null
+     * @returns the status line and headers, ending with the empty line
+     */
+    private String formHead (int code, String reason, HashMap<String, String> extra) {
+        // spoof that this is HTTP/1.0 compliant
+        String line = "HTTP/1.0 ";
+        if (reason != null) {
+            // passed on from the origin
+            line += code + " " + reason;
+        } else {
+            switch (code) {
+                case 200:
+                    line += "200 OK";
+                    break;
+                case 400:
+                    line += "400 Bad Request";
+                    break;
+                case 502:
+                    line += "502 Bad Gateway";
+                    break;
+                default:
+                    line += code;
+                    break;
+            }
+        }
+
+        StringBuilder head = new StringBuilder(line).append("\r\n");
+        head.append("Date: ").append(formatDate(System.currentTimeMillis())).append("\r\n");
+        head.append("Server: CPSC441/1.0\r\n");
+        head.append("Via: 1.0 UrlCache\r\n");
+        head.append("Connection: close\r\n");
+        if (extra != null) {
+            for (Map.Entry<String, String> p : extra.entrySet()) {
+                head.append(p.getKey()).append(": ").append(p.getValue()).append("\r\n");
+            }
+        }
+        return head.append("\r\n").toString();
+    }
+
+    /**
+     * Capitalize a lower case header name, eg. "content-length" to "Content-Length"
+     * @param String name - the header name
+     * @returns the capitalized name
+     */
+    private static String capitalize (String name) {
+        char[] c = name.toCharArray();
+        for (int i = 0; i < c.length; i++) {
+            if (i == 0 || c[i - 1] == '-') {
+                c[i] = Character.toUpperCase(c[i]);
+            }
+        }
+        return new String(c);
+    }
+
+    /**
+     * Format a time as an HTTP date
+     * @param long time - ms since jan 1, 1970
+     * @returns the formatted date
+     */
+    private String formatDate (long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT+0000"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * Read one line of the request head, without the line terminator
+     * @param InputStream in - the client stream
+     * @returns the line, or null if the client closed the connection
+     */
+    private String readLine (InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int i;
+        while ((i = in.read()) != -1) {
+            if (i == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) i);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.io.IOException;
+
+/**
+ * A forward HTTP proxy in front of a UrlCache. Clients send "GET http://host/path"
+ * and are answered from the cache, which fetches or revalidates the object as needed.
+ * The accept loop and worker pool follow the WebServer class.
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+public class ProxyServer extends Thread implements Runnable {
+    /**
+     * Flag set to exit the server accept loop
+     */
+    private boolean acceptRequests;
+
+    /**
+     * Thread pool for workers to execute in
+     */
+    private ExecutorService executor;
+
+    /**
+     * Port to accept connections on
+     */
+    private int port;
+
+    /**
+     * The cache shared by all clients
+     */
+    private UrlCache cache;
+
+    /**
+     * Default constructor
+     * @param int port - the network port to bind the proxy to
+     * @param UrlCache cache - the cache to serve requests from
+     */
+    public ProxyServer (int port, UrlCache cache) {
+        // workers mostly wait on origins, so allow more of them than processors
+        int workers = Runtime.getRuntime().availableProcessors() * 4;
+        executor = Executors.newFixedThreadPool(workers);
+        this.port = port;
+        this.cache = cache;
+
+        // enable the start method
+        acceptRequests = true;
+    }
+
+    /**
+     * The accept-loop. Since this class extends thread, it will run in a
+     * separate, non-blocking thread to the main thread
+     */
+    public void run () {
+        try {
+            // open the socket
+            ServerSocket sock = new ServerSocket(port);
+            sock.setSoTimeout(1000);
+            while (acceptRequests) {
+                try {
+                    Socket cli = sock.accept();
+
+                    // spawn new worker thread
+                    executor.execute(new ProxyConnection(cli, cache));
+                } catch (SocketTimeoutException e) {
+                    // Check while flag
+                }
+            }
+            sock.close();
+        } catch (IOException e) {
+            System.out.println(e);
+            System.out.println("Stopping proxy...");
+            acceptRequests = false;
+            shutdown();
+        }
+    }
+
+    /**
+     * Destroy the proxy, kill the workers
+     */
+    public void shutdown () {
+        // cause the while loop to terminate
+        acceptRequests = false;
+
+        // wait for workers to terminate
+        try {
+            executor.shutdown();
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                // kill workers
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            // kill workers
+            executor.shutdownNow();
+        }
+    }
+}
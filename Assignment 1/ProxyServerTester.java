@@ -0,0 +1,40 @@
+
+/**
+ * A simple driver for running UrlCache as a forward proxy
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ *
+ */
+
+import java.util.*;
+
+public class ProxyServerTester {
+
+    public static void main(String[] args) throws UrlCacheException {
+        int proxyPort = 3128;
+
+        // parse command line args
+        if (args.length == 1) {
+            proxyPort = Integer.parseInt(args[0]);
+        }
+
+        System.out.println("starting the proxy on port " + proxyPort);
+
+        UrlCache cache = new UrlCache();
+        ProxyServer server = new ProxyServer(proxyPort, cache);
+
+        server.start();
+        System.out.println("proxy started. Type \"quit\" to stop");
+        System.out.println(".....................................");
+
+        Scanner keyboard = new Scanner(System.in);
+        while ( !keyboard.next().equals("quit") );
+
+        System.out.println();
+        server.shutdown();
+        cache.close();
+        System.out.println("proxy stopped.");
+    }
+
+}
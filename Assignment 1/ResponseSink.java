@@ -0,0 +1,28 @@
+/**
+ * ResponseSink Interface
+ *
+ * Receives the origin's response when UrlCache.forwardObject contacts the origin,
+ * eg. for a proxy client. Cacheable downloads are copied to the sink while they are
+ * stored; error statuses and responses that cannot be cached are passed on as they
+ * are, without being stored. Nothing is passed on when the cached copy is used.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+public interface ResponseSink {
+    /**
+     * Start passing on a response, called at most once per fetch before any body byte
+     * @param statusCode the origin status code
+     * @param reason the reason phrase of the origin status line, may be empty
+     * @param headers the origin headers, keyed by lower case name. The body written to
+     *                the returned stream is already decoded from any transfer encoding.
+     * @returns OutputStream where to write the body
+     * @throws IOException if the response cannot be passed on
+     */
+    OutputStream begin(int statusCode, String reason, HashMap<String, String> headers) throws IOException;
+}
@@ -0,0 +1,290 @@
+/**
+ * StreamPipe Class
+ *
+ * A bounded in-memory pipe between one writer thread and one reader thread.
+ * Unlike PipedInputStream it does not poll, lets the writer report a failure to
+ * the reader, and lets the reader hang up without blocking the writer: writes
+ * after the reader closed fail at once. A reader that stops reading without closing
+ * holds the writer up for at most the write timeout: after that the pipe overflows,
+ * every write fails, and the reader gets the buffered bytes followed by the end of
+ * the stream once the writer is done (see isOverflowed).
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class StreamPipe {
+    /**
+     * Ring buffer holding the bytes written but not read yet
+     */
+    private byte[] buffer;
+
+    /**
+     * Position of the next byte to read, and the number of bytes buffered
+     */
+    private int head;
+    private int count;
+
+    /**
+     * True once anything was written
+     */
+    private boolean started = false;
+
+    /**
+     * True once the writer is done, successfully or not
+     */
+    private boolean finished = false;
+
+    /**
+     * The failure reported by the writer, null if none
+     */
+    private IOException failure;
+
+    /**
+     * True once the reader closed its end
+     */
+    private boolean readerClosed = false;
+
+    /**
+     * How long a write waits for the reader to make room (ms), 0 to wait forever
+     */
+    private long writeTimeout;
+
+    /**
+     * True once a write gave up waiting for the reader
+     */
+    private boolean overflowed = false;
+
+    /**
+     * The writing end
+     */
+    private OutputStream sink = new OutputStream() {
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            put(b, off, len);
+        }
+
+        public void close() {
+            finish();
+        }
+    };
+
+    /**
+     * The reading end
+     */
+    private InputStream source = new InputStream() {
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return take(b, off, len);
+        }
+
+        public int available() {
+            synchronized (StreamPipe.this) {
+                return count;
+            }
+        }
+
+        public void close() {
+            hangUp();
+        }
+    };
+
+    /**
+     * Create a pipe whose writer waits for the reader as long as it takes
+     * @param capacity the number of bytes buffered before the writer blocks
+     */
+    public StreamPipe(int capacity) {
+        this(capacity, 0L);
+    }
+
+    /**
+     * Create a pipe
+     * @param capacity the number of bytes buffered before the writer blocks
+     * @param writeTimeout how long a write waits for the reader to make room (ms), 0 to wait forever
+     */
+    public StreamPipe(int capacity, long writeTimeout) {
+        buffer = new byte[capacity];
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Get the writing end. Closing it is the same as finish().
+     * @returns OutputStream the writing end
+     */
+    public OutputStream getSink() {
+        return sink;
+    }
+
+    /**
+     * Get the reading end. It reads -1 after finish() and throws the failure after fail().
+     * @returns InputStream the reading end
+     */
+    public InputStream getSource() {
+        return source;
+    }
+
+    /**
+     * End the stream successfully
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * End the stream with a failure, the reader gets it once the buffered bytes are read
+     * @param e the failure
+     */
+    public synchronized void fail(IOException e) {
+        if (!finished) {
+            failure = e;
+            finished = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close the reading end and drop the buffered bytes; further writes fail.
+     * Closing the reading end is the same as hangUp().
+     */
+    public synchronized void hangUp() {
+        readerClosed = true;
+        count = 0;
+        notifyAll();
+    }
+
+    /**
+     * Check whether the pipe overflowed: the reader fell behind for longer than the write
+     * timeout and the bytes written after that were not passed on. Once the reader has
+     * read to the end of the stream it has to get the rest from elsewhere.
+     * @returns boolean true if the pipe overflowed
+     */
+    public synchronized boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Wait until the writer wrote something or finished
+     * @returns boolean true if anything was written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitStart() throws InterruptedException {
+        while (!started && !finished) {
+            wait();
+        }
+        return started;
+    }
+
+    /**
+     * Copy bytes into the buffer, waiting for the reader to make room
+     * @param b the data
+     * @param off the start offset in the data
+     * @param len the number of bytes
+     * @throws IOException if the reader closed its end, the pipe is finished, or it overflowed
+     */
+    private synchronized void put(byte[] b, int off, int len) throws IOException {
+        if (len > 0) {
+            started = true;
+            notifyAll();
+        }
+        while (len > 0) {
+            if (readerClosed) {
+                throw new IOException("Pipe closed by reader");
+            }
+            if (finished) {
+                throw new IOException("Pipe already finished");
+            }
+            if (overflowed) {
+                throw new IOException("Pipe overflowed, the reader did not keep up");
+            }
+            if (count == buffer.length) {
+                try {
+                    waitForRoom();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted writing to pipe");
+                }
+                continue;
+            }
+            // copy up to the end of the free region (it may wrap around)
+            int tail = (head + count) % buffer.length;
+            int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+            System.arraycopy(b, off, buffer, tail, n);
+            count += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the reader to take bytes out of the full buffer, marking the pipe as
+     * overflowed if it does not within the write timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void waitForRoom() throws InterruptedException {
+        if (writeTimeout <= 0) {
+            wait();
+            return;
+        }
+        long deadline = System.currentTimeMillis() + writeTimeout;
+        while (count == buffer.length && !readerClosed) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                overflowed = true;
+                notifyAll();
+                return;
+            }
+            wait(left);
+        }
+    }
+
+    /**
+     * Copy bytes out of the buffer, waiting for the writer
+     * @param b the destination
+     * @param off the start offset in the destination
+     * @param len the maximum number of bytes
+     * @returns int the number of bytes read, -1 at the end of the stream
+     * @throws IOException if the writer failed, or the reader end is closed
+     */
+    private synchronized int take(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (count == 0) {
+            if (readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (finished) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading from pipe");
+            }
+        }
+        // copy up to the end of the buffered region (it may wrap around)
+        int n = Math.min(len, Math.min(count, buffer.length - head));
+        System.arraycopy(buffer, head, b, off, n);
+        head = (head + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+}
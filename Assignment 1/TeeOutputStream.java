@@ -0,0 +1,106 @@
+/**
+ * TeeOutputStream Class
+ *
+ * Writes everything to a primary stream and copies it to a secondary stream.
+ * Failures of the secondary stream (eg. a proxy client hanging up) are remembered
+ * and stop the copying, but never interrupt writes to the primary stream.
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class TeeOutputStream extends OutputStream {
+    /**
+     * The stream that must receive every byte
+     */
+    private OutputStream primary;
+
+    /**
+     * The stream that receives a best-effort copy
+     */
+    private OutputStream secondary;
+
+    /**
+     * The first failure of the secondary stream, null while it works
+     */
+    private IOException secondaryError;
+
+    /**
+     * Create a tee
+     * @param primary the stream that must receive every byte
+     * @param secondary the stream that receives a best-effort copy
+     */
+    public TeeOutputStream(OutputStream primary, OutputStream secondary) {
+        this.primary = primary;
+        this.secondary = secondary;
+    }
+
+    /**
+     * Write one byte to both streams
+     * @param b the byte
+     * @throws IOException if the primary stream fails
+     */
+    public void write(int b) throws IOException {
+        primary.write(b);
+        if (secondaryError == null) {
+            try {
+                secondary.write(b);
+            } catch (IOException e) {
+                secondaryError = e;
+            }
+        }
+    }
+
+    /**
+     * Write a block to both streams
+     * @param b the data
+     * @param off the start offset in the data
+     * @param len the number of bytes to write
+     * @throws IOException if the primary stream fails
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        primary.write(b, off, len);
+        if (secondaryError == null) {
+            try {
+                secondary.write(b, off, len);
+            } catch (IOException e) {
+                secondaryError = e;
+            }
+        }
+    }
+
+    /**
+     * Flush both streams
+     * @throws IOException if the primary stream fails
+     */
+    public void flush() throws IOException {
+        primary.flush();
+        if (secondaryError == null) {
+            try {
+                secondary.flush();
+            } catch (IOException e) {
+                secondaryError = e;
+            }
+        }
+    }
+
+    /**
+     * Close the primary stream. The secondary stream belongs to the caller and stays open.
+     * @throws IOException if the primary stream fails
+     */
+    public void close() throws IOException {
+        flush();
+        primary.close();
+    }
+
+    /**
+     * Get the failure of the secondary stream
+     * @returns IOException the first failure, or null if the copy is complete
+     */
+    public IOException getSecondaryError() {
+        return secondaryError;
+    }
+}
@@ -5,8 +5,8 @@
  * @version 0.1 Oct 3, 2016
  */
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Url {
     /**
@@ -30,85 +30,172 @@ public class Url {
     private String protocol;
 
     /**
-     * Create a Url from a string representation
+     * Maximum number of parsed Urls kept by parse()
+     */
+    private static final int POOL_SIZE = 4096;
+
+    /**
+     * Recently parsed Urls keyed by their string representation, least recently used first
+     */
+    private static final LinkedHashMap<String, Url> pool = new LinkedHashMap<String, Url>(256, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Url> eldest) {
+            return size() > POOL_SIZE;
+        }
+    };
+
+    /**
+     * Get the Url for a string representation, reusing the parsed Url if the same
+     * string was seen recently. Url objects are immutable so they can be shared.
+     * @param address the string representation
+     * @returns Url the parsed url
+     * @throws UrlCacheException if the address is not a valid url
+     */
+    public static Url parse(String address) throws UrlCacheException {
+        synchronized (pool) {
+            Url u = pool.get(address);
+            if (u != null) {
+                return u;
+            }
+        }
+        // parse outside the lock; a concurrent parse of the same string is harmless
+        Url u = new Url(address);
+        synchronized (pool) {
+            pool.put(address, u);
+        }
+        return u;
+    }
+
+    /**
+     * The string representation, built on first use
+     */
+    private String string;
+
+    /**
+     * Create a Url from a string representation.
+     *
+     * The address is parsed in a single pass and accepts the same language as
+     *   (https?://)?([a-z0-9-]+\.)+[a-z]+(:[0-9]+)?(/[a-z0-9~.%]*)*((\?|#|:).*)?
+     * (case insensitive): an optional protocol, a host of dot separated labels whose
+     * last label is letters only, an optional port, a path, then anything after ?, # or :
      */
     public Url(String address) throws UrlCacheException {
-        /* regular expression for URL validation
-            ^                          Start of string
-            (https?\\:\\/\\/)?        0 or 1 of: "http://"" or "https://"" (protocols)
-            ([a-z0-9\\-]+\\.)+        any characters or dashes, followed by 1 dot (subdomains and domain body)
-            [a-z]+                    any characters (domain suffix)
-            (\\:[0-9]+)?              0 or 1 of: : followed by numbers (port)
-            (\\/[a-z0-9~\\.\\%]*)*    0 or N of: URL safe characters (path)
-            ((\\?|\\#|\\:).*)?        0 or 1 of: Path-ending tokens and their bodies (querystring, hash)
-            $                         End of string
-        */
-        Pattern validURL = Pattern.compile("^(https?\\:\\/\\/)?([a-z0-9\\-]+\\.)+[a-z]+(\\:[0-9]+)?(\\/[a-z0-9~\\.\\%]*)*((\\?|\\#|\\:).*)?$", Pattern.CASE_INSENSITIVE);
-
-        // if the address passes the regular expression
-        Matcher m = validURL.matcher(address);
-        if (m.matches()) {
-            /* regular expression for protocols
-                ^         Start of string
-                https\\:  "https:"
-                .*        Any amount of any characters
-                $         End of string
-            */
-            if (Pattern.compile("^https\\:.*$", Pattern.CASE_INSENSITIVE).matcher(address).matches()) {
-                // "https://" was included, use the default SSL port
-                protocol = "HTTPS";
-                port = 443;
-            } else {
-                // "http://" or no protocol was included, use the default port
-                protocol = "HTTP";
-                port = 80;
+        int len = address.length();
+        int i = 0;
+
+        // protocol
+        if (address.regionMatches(true, 0, "https://", 0, 8)) {
+            // "https://" was included, use the default SSL port
+            protocol = "HTTPS";
+            port = 443;
+            i = 8;
+        } else {
+            // "http://" or no protocol was included, use the default port
+            protocol = "HTTP";
+            port = 80;
+            if (address.regionMatches(true, 0, "http://", 0, 7)) {
+                i = 7;
             }
-            /* regular expression for extracting the basename
-                (?<=(^|\\/\\/))        If the next section is preceded by the start of the string,
-                                       or "//" (start of the domain name)
-                ([0-9a-z\\-]+\\.)+     One or more URL safe characters followed by one dot (subdomains + domain body)
-                [a-z]+                 One or more characters (domain suffix)
-            */
-            Matcher bn = Pattern.compile("(?<=(^|\\/\\/))([0-9a-z\\-]+\\.)+[a-z]+", Pattern.CASE_INSENSITIVE).matcher(address);
-            if (bn.find()) {
-                // first match
-                basename = bn.group(0);
-
-                // no pathname was given
-                if (bn.end(0) == address.length()) {
-                    pathname = "/";
-
-                // port was given
-                } else if (address.charAt(bn.end(0)) == ':') {
-                    // address of the end of the port declaration
-                    int endPort = address.indexOf('/', bn.end(0) + 1);
-                    // if no pathname was given after the port
-                    if (endPort == -1) {
-                        pathname = "/";
-                        try {
-                            port = Integer.parseInt(address.substring(bn.end(0) + 1));
-                        } catch (NumberFormatException e) {
-                            throw new UrlCacheException("Bad URL port: " + address);
-                        }
-                    } else {
-                        try {
-                            port = Integer.parseInt(address.substring(bn.end(0) + 1, endPort));
-                        } catch (NumberFormatException e) {
-                            throw new UrlCacheException("Bad URL port: " + address);
-                        }
-                        pathname = address.substring(endPort);
-                    }
-                } else {
-                    pathname = address.substring(bn.end(0));
+        }
+
+        // basename: labels separated by single dots, at least two labels,
+        // and the last label (domain suffix) is letters only
+        int hostStart = i;
+        int labels = 0;
+        int labelLength = 0;
+        boolean lettersOnly = true;
+        for (; i < len; i++) {
+            char c = address.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0) {
+                    throw new UrlCacheException("Invalid URL: " + address);
                 }
+                labels++;
+                labelLength = 0;
+                lettersOnly = true;
+            } else if (isLetter(c)) {
+                labelLength++;
+            } else if ((c >= '0' && c <= '9') || c == '-') {
+                labelLength++;
+                lettersOnly = false;
             } else {
-                throw new UrlCacheException("No basename found");
+                break;
             }
+        }
+        if (labels == 0 || labelLength == 0 || !lettersOnly) {
+            throw new UrlCacheException("Invalid URL: " + address);
+        }
+        basename = address.substring(hostStart, i);
+
+        // no pathname was given
+        if (i == len) {
+            pathname = "/";
+            return;
+        }
 
+        // port was given; it runs up to the first slash. Like the path-ending tokens,
+        // a ':' after the basename makes the rest of the address acceptable as is
+        if (address.charAt(i) == ':') {
+            int endPort = address.indexOf('/', i + 1);
+            int end = endPort == -1 ? len : endPort;
+            if (end == i + 1) {
+                throw new UrlCacheException("Bad URL port: " + address);
+            }
+            port = 0;
+            for (int j = i + 1; j < end; j++) {
+                char c = address.charAt(j);
+                if (c < '0' || c > '9' || port > (Integer.MAX_VALUE - (c - '0')) / 10) {
+                    throw new UrlCacheException("Bad URL port: " + address);
+                }
+                port = port * 10 + (c - '0');
+            }
+            // if no pathname was given after the port
+            pathname = endPort == -1 ? "/" : address.substring(endPort);
         } else {
+            checkPath(address, i);
+            pathname = address.substring(i);
+        }
+    }
+
+    /**
+     * Check that the part of an address after the basename and port is a valid path:
+     * slash separated URL safe characters, optionally ended by ?, # or : and anything after
+     * @param address the full address
+     * @param start index of the path
+     * @throws UrlCacheException if the path contains characters that are not allowed
+     */
+    private static void checkPath(String address, int start) throws UrlCacheException {
+        int len = address.length();
+        if (start < len && address.charAt(start) != '/' && !isPathEnd(address.charAt(start))) {
             throw new UrlCacheException("Invalid URL: " + address);
         }
+        for (int i = start; i < len; i++) {
+            char c = address.charAt(i);
+            if (isPathEnd(c)) {
+                // querystring, hash, etc. may contain anything
+                return;
+            }
+            if (!(c == '/' || isLetter(c) || (c >= '0' && c <= '9') || c == '~' || c == '.' || c == '%')) {
+                throw new UrlCacheException("Invalid URL: " + address);
+            }
+        }
+    }
 
+    /**
+     * Check for a path-ending token
+     * @param c the character
+     * @returns boolean true for ?, # and :
+     */
+    private static boolean isPathEnd(char c) {
+        return c == '?' || c == '#' || c == ':';
+    }
+
+    /**
+     * Check for an ASCII letter
+     * @param c the character
+     * @returns boolean true for a-z and A-Z
+     */
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
     }
 
     /**
@@ -148,6 +235,9 @@ public class Url {
      * @retuns String the string representation
      */
     public String toString() {
-        return basename + ":" + port + pathname;
+        if (string == null) {
+            string = basename + ":" + port + pathname;
+        }
+        return string;
     }
 }
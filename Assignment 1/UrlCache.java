@@ -8,32 +8,52 @@
  *
  */
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
-import java.io.DataOutputStream;
-import java.io.DataInputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.net.UnknownHostException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Date;
 import java.util.TimeZone;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
 public class UrlCache {
     /**
-     * Catalog for storing objects and their Last-Modified values
+     * Catalog for storing objects and their Last-Modified and freshness information
      */
-    private HashMap<String, Long> catalog;
+    private HashMap<String, CacheEntry> catalog;
+
+    /**
+     * Catalog keys by the host, port and path of their url (Url.toString()), so that
+     * getFilePath(Url) finds an object however its url was written. Guarded by catalog.
+     */
+    private HashMap<String, String> catalogKeys = new HashMap<String, String>();
 
     /**
      * The location for the object catalog
@@ -45,11 +65,232 @@ public class UrlCache {
      */
     private final String cacheRoot = "./cache";
 
+    /**
+     * Content addressed storage for the objects under cacheRoot
+     */
+    private BlobStore blobs;
+
     /**
      * Set to true to print communications between client and server
      */
     private final boolean printVerbose = false;
 
+    /**
+     * Maximum number of persistent connections per origin
+     */
+    private final int maxConnectionsPerHost = 4;
+
+    /**
+     * Time after which an idle persistent connection is closed (ms)
+     */
+    private final long connectionIdleTimeout = 30000L;
+
+    /**
+     * Time to wait for an origin to accept a connection (ms)
+     */
+    private final int connectTimeout = 10000;
+
+    /**
+     * Time a read may wait for an origin before the request fails (ms)
+     */
+    private final int readTimeout = 30000;
+
+    /**
+     * Persistent connections to origin servers
+     */
+    private ConnectionPool pool;
+
+    /**
+     * Time a host name lookup is cached (ms)
+     */
+    private final long dnsTtl = 60000L;
+
+    /**
+     * Time a failed host name lookup is cached (ms)
+     */
+    private final long dnsNegativeTtl = 5000L;
+
+    /**
+     * Cached host name lookups for origin connections
+     */
+    private DnsCache dns;
+
+    /**
+     * Maximum number of fetches getObjects/getObjectAsync run at the same time.
+     * Each origin takes at most maxConnectionsPerHost of them, see originQueues.
+     */
+    private final int maxConcurrentFetches = 16;
+
+    /**
+     * Bytes of a download buffered for an openObject caller before the download waits
+     */
+    private final int pipeCapacity = 256 * 1024;
+
+    /**
+     * Time a download waits for an openObject caller that reads nothing before it
+     * finishes into the cache without them (ms)
+     */
+    private final long pipeWriteTimeout = 5000L;
+
+    /**
+     * Worker threads for parallel fetches, created on first use
+     */
+    private ExecutorService executor;
+
+    /**
+     * Fetches waiting for a worker, queued per origin so that each origin takes at most
+     * maxConnectionsPerHost workers and the rest stay free for other origins
+     */
+    private OriginQueues originQueues = new OriginQueues(maxConnectionsPerHost);
+
+    /**
+     * Number of batches in progress; while non-zero the catalog is written once per batch
+     */
+    private AtomicInteger batches = new AtomicInteger(0);
+
+    /**
+     * Held while the catalog file is written, so writes happen one at a time and in order
+     */
+    private final Object catalogFileLock = new Object();
+
+    /**
+     * How long past its freshness lifetime an entry may still be served while it is
+     * revalidated in the background (ms); 0 to always revalidate before serving
+     */
+    private volatile long maxStale = 0L;
+
+    /**
+     * Fraction of the freshness lifetime after which a popular entry is revalidated
+     * in the background before it expires; 0 to disable refresh-ahead
+     */
+    private volatile double refreshAheadFraction = 0.0;
+
+    /**
+     * Number of uses after which an entry counts as popular for refresh-ahead
+     */
+    private volatile int refreshAheadHits = 1;
+
+    /**
+     * Urls with a background revalidation in progress
+     */
+    private Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A failed fetch remembered for a short time
+     */
+    private static class NegativeEntry {
+        /** the error the fetch failed with */
+        String message;
+        /** time after which the url is tried again (ms since jan 1, 1970) */
+        long expires;
+    }
+
+    /**
+     * The content of a download for an openObject caller. It is read from the pipe while
+     * the caller keeps up; once the pipe has overflowed, the rest is read from the cached
+     * file after the download completes.
+     */
+    private class PipedObject extends InputStream {
+        /** the url being downloaded */
+        private String url;
+        /** the pipe the download is written into */
+        private StreamPipe pipe;
+        /** true to read the cached file through a memory mapping */
+        private boolean map;
+        /** the stream being read, the pipe's source until it overflows */
+        private InputStream in;
+        /** number of bytes read so far */
+        private long position = 0L;
+
+        PipedObject(String url, StreamPipe pipe, boolean map) {
+            this.url = url;
+            this.pipe = pipe;
+            this.map = map;
+            in = pipe.getSource();
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1 && in == pipe.getSource() && pipe.isOverflowed()) {
+                // the pipe's end comes after the download finished, so the cached file is complete
+                in = openCached();
+                n = in.read(b, off, len);
+            }
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        public void close() throws IOException {
+            pipe.hangUp();
+            in.close();
+        }
+
+        /**
+         * Open the cached file at the position the pipe stopped at
+         * @returns InputStream the rest of the content
+         * @throws IOException if the download was not cached or the file is too short
+         */
+        private InputStream openCached() throws IOException {
+            String path = getFilePath(url);
+            if (path == null) {
+                throw new IOException("Download of " + url + " overflowed and was not cached");
+            }
+            InputStream file = map ? new MappedFileInputStream(path) : new FileInputStream(path);
+            long skipped = 0L;
+            while (skipped < position) {
+                long k = file.skip(position - skipped);
+                if (k <= 0) {
+                    file.close();
+                    throw new IOException("Cached copy of " + url + " is shorter than the download");
+                }
+                skipped += k;
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Urls whose last fetch failed, answered with the same error until the entry expires
+     */
+    private ConcurrentHashMap<String, NegativeEntry> negative = new ConcurrentHashMap<String, NegativeEntry>();
+
+    /**
+     * Number of negative entries above which expired ones are purged
+     */
+    private final int maxNegativeEntries = 1024;
+
+    /**
+     * How long a failed fetch is remembered (ms); 0 to disable negative caching
+     */
+    private volatile long negativeTtl = 10000L;
+
+    /**
+     * Origins that keep failing (connection errors, incomplete responses or 5xx) are skipped
+     * after 3 failures in a row, for 1 s doubling up to 5 min between probes
+     */
+    private OriginBackoff backoff = new OriginBackoff(3, 1000L, 300000L);
+
+    /**
+     * Request counters and origin timings
+     */
+    private CacheStats stats = new CacheStats();
+
+    /**
+     * Prints the stats periodically, created by startStatsDump
+     */
+    private ScheduledExecutorService statsDump;
+
     /**
      * Default constructor to initialize data structures used for caching/etc
      * If the cache already exists then load it. If any errors then throw exception.
@@ -58,12 +299,44 @@ public class UrlCache {
      */
     @SuppressWarnings("unchecked")
     public UrlCache() throws UrlCacheException {
+        dns = new DnsCache(dnsTtl, dnsNegativeTtl);
+        pool = new ConnectionPool(maxConnectionsPerHost, connectionIdleTimeout, connectTimeout, readTimeout, dns);
+
+        // remove downloads left behind by a crash, they were never in the catalog
+        blobs = new BlobStore(cacheRoot);
+        blobs.cleanTempFiles();
+
         // if the catalog already exists, load it
         if (new File(catalogPath).isFile()) {
             try {
                 ObjectInputStream in = new ObjectInputStream(new FileInputStream(catalogPath));
-                catalog = (HashMap<String, Long>) in.readObject();
+                catalog = (HashMap<String, CacheEntry>) in.readObject();
                 in.close();
+
+                // catalogs from older versions only stored Last-Modified values, start over
+                for (Object entry : catalog.values()) {
+                    if (!(entry instanceof CacheEntry)) {
+                        catalog = new HashMap<String, CacheEntry>();
+                        dumpCache(catalogPath);
+                        break;
+                    }
+                }
+
+                // count the references to each blob
+                for (CacheEntry entry : catalog.values()) {
+                    if (entry.getBlob() != null) {
+                        blobs.addReference(entry.getBlob());
+                    }
+                }
+
+                // index the keys, parsing them without filling the Url pool
+                for (String key : catalog.keySet()) {
+                    try {
+                        catalogKeys.put(new Url(key).toString(), key);
+                    } catch (UrlCacheException e) {
+                        // not a url that can be looked up
+                    }
+                }
             } catch (FileNotFoundException e) {
                 throw new UrlCacheException("Could not read from catalog file: " + catalogPath);
             } catch (IOException e) {
@@ -72,180 +345,697 @@ public class UrlCache {
                 throw new UrlCacheException("Could not interpret catalog file: " + e.toString());
             }
         } else {
-            catalog = new HashMap<String, Long>();
+            catalog = new HashMap<String, CacheEntry>();
             // write the catalog to the file system
             dumpCache(catalogPath);
         }
+
+        // remove blobs stored before a crash that never made it into the catalog
+        blobs.sweep();
     }
 
     /**
      * Downloads the object specified by the parameter url if the local copy is out of date.
+     * A local copy that is still fresh is used without contacting the origin.
      *
      * @param url	URL of the object to be downloaded. It is a fully qualified URL.
      * @throws UrlCacheException if encounters any errors/exceptions
      */
     public void getObject(String url) throws UrlCacheException {
-        Url u = new Url(url);
-        Socket sock;
-        PrintWriter out;
-        DataInputStream in;
-        String since;
-        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
-        format.setTimeZone(TimeZone.getTimeZone("GMT+0000"));
+        fetch(url, null, null, false);
+    }
 
-        // if the protocol is supported
-        if (!u.getProtocol().equals("HTTP")) {
-            throw new UrlCacheException("Protocol not supported: " + u.getProtocol());
+    /**
+     * Downloads the object specified by the parameter url if the local copy is out of date,
+     * passing the origin's response on to sink whenever the origin is contacted: a download
+     * is copied to it as it is cached, and an error status or a response that cannot be
+     * cached is passed on instead of failing. Nothing is passed on when the cached copy is
+     * used; read it from getFilePath(url) instead.
+     *
+     * @param url	URL of the object to be downloaded. It is a fully qualified URL.
+     * @param sink	receives the origin's response
+     * @return what happened to the object, FORWARDED if the response was not cached
+     * @throws UrlCacheException if the origin cannot be reached or the response cannot be passed on
+     */
+    public FetchResult.Outcome forwardObject(String url, ResponseSink sink) throws UrlCacheException {
+        return fetch(url, null, sink, false);
+    }
+
+    /**
+     * Open the content of an object, fetching or revalidating it first as getObject does.
+     * A download is streamed to the caller while it is written into the cache, so its
+     * bytes are not read back from disk; otherwise the cached file is opened.
+     * The caller must read the stream to the end or close it, see openObject(url, map).
+     *
+     * @param url	URL of the object. It is a fully qualified URL.
+     * @return the content; a download that fails part way throws an IOException on read
+     * @throws UrlCacheException if the object cannot be fetched or opened
+     */
+    public InputStream openObject(String url) throws UrlCacheException {
+        return openObject(url, false);
+    }
+
+    /**
+     * Open the content of an object, fetching or revalidating it first as getObject does.
+     * A fresh cached copy is opened on the calling thread. Revalidations and downloads run
+     * on a worker; a download is streamed to the caller while it is written into the cache,
+     * so its bytes are not read back from disk.
+     *
+     * The caller must read the stream to the end or close it. While a download streams,
+     * it holds a worker and an origin connection, and it waits for the caller whenever
+     * pipeCapacity bytes are unread. If the caller reads nothing for pipeWriteTimeout,
+     * the download stops waiting and finishes into the cache; the stream then continues
+     * from the cached file once the download is complete.
+     *
+     * @param url	URL of the object. It is a fully qualified URL.
+     * @param map	true to read a cached file through a memory mapping
+     * @return the content; a download that fails part way throws an IOException on read
+     * @throws UrlCacheException if the object cannot be fetched or opened
+     */
+    public InputStream openObject(final String url, boolean map) throws UrlCacheException {
+        InputStream cached = openFresh(url, map);
+        if (cached != null) {
+            return cached;
         }
 
-        // Open socket
+        // a cached copy replaced (and deleted) between the fetch and the open is fetched again
+        for (int attempt = 0; ; attempt++) {
+            final StreamPipe pipe = new StreamPipe(pipeCapacity, pipeWriteTimeout);
+            final UrlCacheException[] error = new UrlCacheException[1];
+            submit(url, new Runnable() {
+                public void run() {
+                    try {
+                        fetch(url, pipe.getSink(), null, false);
+                        pipe.finish();
+                    } catch (UrlCacheException e) {
+                        error[0] = e;
+                        pipe.fail(new IOException(e.getMessage()));
+                    }
+                }
+            }, new Runnable() {
+                public void run() {
+                    error[0] = closed(url);
+                    pipe.fail(new IOException(error[0].getMessage()));
+                }
+            });
+
+            // the pipe's lock makes the result visible once it is finished
+            boolean streaming;
+            try {
+                streaming = pipe.awaitStart();
+            } catch (InterruptedException e) {
+                pipe.hangUp();
+                Thread.currentThread().interrupt();
+                throw new UrlCacheException("Interrupted opening " + url);
+            }
+            if (streaming) {
+                return new PipedObject(url, pipe, map);
+            }
+            if (error[0] != null) {
+                throw error[0];
+            }
+
+            // nothing was streamed: the cached copy is good, or the download had an empty body
+            String path = getFilePath(url);
+            try {
+                if (path == null) {
+                    throw new FileNotFoundException(url);
+                }
+                return map ? new MappedFileInputStream(path) : new FileInputStream(path);
+            } catch (IOException e) {
+                if (attempt > 0) {
+                    throw new UrlCacheException("Could not open the cached copy of " + url + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the cached copy of an object if it is fresh, counting the hit as fetch() does
+     * @param url the fully qualified URL
+     * @param map true to read the file through a memory mapping
+     * @returns InputStream the content, or null if the object has to be fetched or revalidated
+     */
+    private InputStream openFresh(String url, boolean map) {
+        CacheEntry entry;
+        long now = System.currentTimeMillis();
+        synchronized (catalog) {
+            entry = catalog.get(url);
+            if (entry == null || entry.getBlob() == null || !entry.isFresh(now)) {
+                return null;
+            }
+        }
+        String path = blobs.getPath(entry.getBlob());
+        InputStream in;
         try {
-            sock = new Socket(u.getBasename(), u.getPort());
-            out = new PrintWriter(new DataOutputStream(sock.getOutputStream()));
-            in = new DataInputStream(sock.getInputStream());
-        } catch (UnknownHostException e) {
-            throw new UrlCacheException("Could not resolve host: " + u.getBasename() + " on port " + u.getPort());
+            in = map ? new MappedFileInputStream(path) : new FileInputStream(path);
         } catch (IOException e) {
-            throw new UrlCacheException(e.toString());
+            // the file is gone, fetch() drops the entry and downloads it again
+            return null;
+        }
+
+        boolean refreshAhead;
+        synchronized (catalog) {
+            int hits = entry.hit();
+            refreshAhead = refreshAheadFraction > 0 && hits >= refreshAheadHits
+                && entry.getCurrentAge(now) >= refreshAheadFraction * entry.getFreshnessLifetime();
+        }
+        if (refreshAhead) {
+            revalidateInBackground(url);
+        }
+        stats.freshHit(new File(path).length());
+        System.out.println("Cached object is fresh. " + path);
+        return in;
+    }
+
+    /**
+     * Fetch or revalidate many objects in parallel and wait for all of them.
+     * Duplicate urls are fetched once.
+     *
+     * @param urls	URLs of the objects to be downloaded
+     * @return the outcome for each url, in the order given
+     */
+    public LinkedHashMap<String, FetchResult> getObjects(Collection<String> urls) {
+        LinkedHashMap<String, CompletableFuture<FetchResult>> pending = new LinkedHashMap<String, CompletableFuture<FetchResult>>();
+        LinkedHashMap<String, FetchResult> results = new LinkedHashMap<String, FetchResult>();
+
+        // write the catalog once at the end instead of after every object
+        batches.incrementAndGet();
+        try {
+            for (String url : urls) {
+                if (!pending.containsKey(url)) {
+                    pending.put(url, getObjectAsync(url));
+                }
+            }
+            for (Map.Entry<String, CompletableFuture<FetchResult>> p : pending.entrySet()) {
+                results.put(p.getKey(), p.getValue().join());
+            }
+        } finally {
+            batches.decrementAndGet();
         }
 
-        // Make request
-        sendHeader(out, "GET " + u.getPathname() + " HTTP/1.1");
-        sendHeader(out, "Host: " + u.getBasename());
         try {
-            sendHeader(out, "If-modified-since: " + format.format(new Date(getLastModified(url))));
+            dumpCache(catalogPath);
         } catch (UrlCacheException e) {
-            // file not in cache
+            System.out.println("There was a problem: " + e.getMessage());
         }
+        return results;
+    }
 
-        // end request
-        sendHeader(out);
-        out.flush();
-
-        // Parse Headers
-        byte current;
-        int i;
-        long lm = 0L;
-        byte[] currentBytes;
-        int length = 0;
-        int statusCode = -1;
-        ArrayList<Byte> bytes = new ArrayList<Byte>();
+    /**
+     * Fetch or revalidate an object on a worker thread.
+     * The returned future never completes exceptionally; failures are reported in the FetchResult.
+     *
+     * @param url	URL of the object to be downloaded
+     * @return a future for the outcome of the fetch
+     */
+    public CompletableFuture<FetchResult> getObjectAsync(final String url) {
+        final CompletableFuture<FetchResult> result = new CompletableFuture<FetchResult>();
+        submit(url, new Runnable() {
+            public void run() {
+                try {
+                    result.complete(new FetchResult(url, fetch(url, null, null, false)));
+                } catch (UrlCacheException e) {
+                    result.complete(new FetchResult(url, e));
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                result.complete(new FetchResult(url, closed(url)));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Serve entries up to maxStale past their freshness lifetime without waiting for the
+     * origin; they are revalidated in the background instead. Entries marked
+     * must-revalidate or no-cache by the origin are never served stale.
+     *
+     * @param maxStale	how long past its lifetime an entry may be served (ms), 0 to disable
+     */
+    public void setMaxStale(long maxStale) {
+        this.maxStale = maxStale;
+    }
+
+    /**
+     * Revalidate popular entries in the background before they expire, so they stay fresh.
+     *
+     * @param fraction	fraction of the freshness lifetime after which an entry is refreshed, 0 to disable
+     * @param minHits	number of uses after which an entry is refreshed ahead
+     */
+    public void setRefreshAhead(double fraction, int minHits) {
+        this.refreshAheadFraction = fraction;
+        this.refreshAheadHits = minHits;
+    }
+
+    /**
+     * Remember failed fetches (error statuses and DNS/connection failures) for a while and
+     * answer requests for the same url with the same error instead of contacting the origin.
+     *
+     * @param ttl	how long a failure is remembered (ms), 0 to disable
+     */
+    public void setNegativeTtl(long ttl) {
+        this.negativeTtl = ttl;
+        if (ttl <= 0) {
+            negative.clear();
+        }
+    }
+
+    /**
+     * Map a host name to fixed addresses instead of looking it up, eg. for testing offline.
+     * The addresses are tried in order when connecting.
+     *
+     * @param host	the host name
+     * @param addresses	the IPv4 or IPv6 address literals
+     * @throws UrlCacheException if an address is not a valid literal
+     */
+    public void addHost(String host, String... addresses) throws UrlCacheException {
         try {
-            // read bytes one at a time
-            while ((i = in.read()) != -1) {
-                current = (byte) i;
+            dns.addHost(host, addresses);
+        } catch (UnknownHostException e) {
+            throw new UrlCacheException("Bad address for host " + host + ": " + e.getMessage());
+        }
+    }
 
-                // add the current byte to the past bytes
-                bytes.add(current);
+    /**
+     * Add the static host name mappings of a hosts file ("address name [name...]" per line).
+     * Nothing is loaded unless this is called.
+     *
+     * @param path	the hosts file path
+     * @throws UrlCacheException if the file cannot be read or has an invalid address
+     */
+    public void loadHosts(String path) throws UrlCacheException {
+        try {
+            dns.loadHosts(path);
+        } catch (IOException e) {
+            throw new UrlCacheException("Could not read hosts file: " + e.getMessage());
+        }
+    }
 
-                // construct a primitive array of bytes from the ArrayList
-                currentBytes = new byte[bytes.size()];
-                for (int j = 0; j < bytes.size(); j++) {
-                    currentBytes[j] = bytes.get(j).byteValue();
+    /**
+     * Remember a failed fetch
+     * @param url the fully qualified URL
+     * @param message the error
+     * @returns UrlCacheException the error to throw
+     */
+    private UrlCacheException failed(String url, String message) {
+        long ttl = negativeTtl;
+        if (ttl > 0) {
+            long now = System.currentTimeMillis();
+            if (negative.size() >= maxNegativeEntries) {
+                Iterator<NegativeEntry> it = negative.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().expires <= now) {
+                        it.remove();
+                    }
                 }
+            }
+            NegativeEntry n = new NegativeEntry();
+            n.message = message;
+            n.expires = now + ttl;
+            negative.put(url, n);
+        }
+        return new UrlCacheException(message);
+    }
 
-                // interpret the bytes as a string
-                String cur;
+    /**
+     * Revalidate an object on a worker thread, unless that is already happening
+     * @param url the fully qualified URL
+     */
+    private void revalidateInBackground(final String url) {
+        if (!revalidating.add(url)) {
+            return;
+        }
+        submit(url, new Runnable() {
+            public void run() {
                 try {
-                    cur = new String(currentBytes, "UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    throw new UrlCacheException(e.toString());
+                    fetch(url, null, null, true);
+                } catch (UrlCacheException e) {
+                    System.out.println("Background revalidation of " + url + " failed: " + e.getMessage());
+                } finally {
+                    revalidating.remove(url);
                 }
+            }
+        }, new Runnable() {
+            public void run() {
+                revalidating.remove(url);
+            }
+        });
+    }
 
-                // check for the status
-                if (cur.matches("^HTTP/1\\.[01] [0-9]{3}.*$")) {
-                    statusCode = Integer.parseInt(cur.split(" ")[1]);
-                }
+    /**
+     * Download or revalidate an object, counting failed requests
+     * @param url the fully qualified URL
+     * @param tee stream to copy a downloaded body to, or null
+     * @param sink receives the origin's response, see forwardObject, or null
+     * @param background true to always contact the origin, for background revalidation
+     * @returns Outcome what happened to the object
+     * @throws UrlCacheException if encounters any errors/exceptions
+     */
+    private FetchResult.Outcome fetch(String url, OutputStream tee, ResponseSink sink, boolean background) throws UrlCacheException {
+        try {
+            return fetchObject(url, tee, sink, background);
+        } catch (UrlCacheException e) {
+            if (!background) {
+                stats.error();
+            }
+            throw e;
+        }
+    }
 
-                // check for the Last-Modified header
-                if (cur.length() > 14 && cur.substring(0, 15).equals("Last-Modified: ") && cur.endsWith("\r\n")) {
-                    try {
-                        lm = format.parse((cur.replace("Last-Modified: ", "").trim())).getTime();
-                    } catch (ParseException e) {
-                        throw new UrlCacheException("Bad field in Last-Modified header: " + cur);
-                    }
-                }
+    /**
+     * Download or revalidate an object
+     * @param url the fully qualified URL
+     * @param tee stream to copy a downloaded body to, or null
+     * @param sink receives the origin's response, see forwardObject, or null
+     * @param background true to always contact the origin, for background revalidation
+     * @returns Outcome what happened to the object
+     * @throws UrlCacheException if encounters any errors/exceptions
+     */
+    private FetchResult.Outcome fetchObject(String url, OutputStream tee, ResponseSink sink, boolean background) throws UrlCacheException {
+        Url u = Url.parse(url);
 
-                // if the line is over, clear the byte ArrayList (start building a new string)
-                if (cur.endsWith("\r\n")) {
-                    if (printVerbose) {
-                        System.out.println("< " + cur.replace("\r\n", "\\r\\n"));
-                    }
-                    bytes.clear();
+        // if the protocol is supported
+        if (!u.getProtocol().equals("HTTP")) {
+            throw new UrlCacheException("Protocol not supported: " + u.getProtocol());
+        }
+
+        // a fresh copy does not need to be revalidated
+        CacheEntry entry;
+        boolean fresh;
+        boolean usableStale;
+        boolean refreshAhead;
+        long now = System.currentTimeMillis();
+        synchronized (catalog) {
+            entry = catalog.get(url);
+            int hits = entry != null && !background ? entry.hit() : 0;
+            fresh = entry != null && entry.isFresh(now);
+            usableStale = entry != null && !fresh && maxStale > 0 && entry.isUsableStale(now, maxStale);
+            refreshAhead = fresh && refreshAheadFraction > 0 && hits >= refreshAheadHits
+                && entry.getCurrentAge(now) >= refreshAheadFraction * entry.getFreshnessLifetime();
+        }
+        String path = entry == null || entry.getBlob() == null ? null : blobs.getPath(entry.getBlob());
+        long cachedSize = path == null ? 0L : new File(path).length();
+        if (entry != null && (path == null || !new File(path).isFile())) {
+            // the file is gone, do not let a 304 validate it
+            entry = null;
+            stats.evicted();
+        }
+        if (entry != null && !background) {
+            if (fresh) {
+                if (refreshAhead) {
+                    revalidateInBackground(url);
                 }
+                stats.freshHit(cachedSize);
+                System.out.println("Cached object is fresh. " + path);
+                return FetchResult.Outcome.FRESH;
+            }
+            if (usableStale) {
+                revalidateInBackground(url);
+                stats.staleHit(cachedSize);
+                System.out.println("Cached object is stale, revalidating in the background. " + path);
+                return FetchResult.Outcome.STALE;
+            }
+        }
 
-                // the response headers are done, next byte starts the body
-                if (cur.equals("\r\n")) {
-                    break;
+        // a recent failure is reported again without contacting the origin,
+        // unless the origin's own response is to be passed on
+        NegativeEntry failure = negative.get(url);
+        if (failure != null && sink == null) {
+            if (failure.expires > now) {
+                if (!background) {
+                    stats.negativeHit();
                 }
+                throw new UrlCacheException(failure.message);
             }
-        } catch (IOException e) {
-            throw new UrlCacheException("Cannot read headers from the socket");
+            negative.remove(url, failure);
         }
 
-        // statusCode was never set
-        if (statusCode == -1) {
-            throw new UrlCacheException("HTTP response was not complete");
+        // skip origins that keep failing until their backoff delay is over
+        String origin = u.getBasename() + ":" + u.getPort();
+        long wait = backoff.check(origin, now);
+        if (wait > 0) {
+            throw new UrlCacheException("Origin unavailable, retrying in " + wait + " ms: " + origin);
         }
 
-        // handle response
-        switch (statusCode) {
-            case 304:
-                // the catalog says the file is up to date
-                System.out.println("Cached object is up to date. " + getFilePath(u));
-                break;
-            case 200:
-                // download new file
-                if (lm == 0L) {
-                    throw new UrlCacheException("No Last-Modified header in response");
-                }
+        // Send the request. A pooled connection may have been closed by the origin
+        // while it was idle, in which case the request is retried on a new connection
+        HttpConnection conn = null;
+        HashMap<String, String> headers = new HashMap<String, String>();
+        StringBuilder reason = new StringBuilder();
+        int statusCode = -1;
+        long requestTime = 0L;
+        for (int attempt = 0; statusCode == -1; attempt++) {
+            long connectStart = System.nanoTime();
+            try {
+                // a retry skips the idle connections, they may have been closed as well
+                conn = attempt == 0 ? pool.acquire(u.getBasename(), u.getPort()) : pool.acquireNew(u.getBasename(), u.getPort());
+                stats.getConnectTimes().record(System.nanoTime() - connectStart);
+            } catch (UnknownHostException e) {
+                backoff.failure(origin, System.currentTimeMillis());
+                throw failed(url, "Could not resolve host: " + u.getBasename() + " on port " + u.getPort());
+            } catch (IOException e) {
+                backoff.failure(origin, System.currentTimeMillis());
+                throw failed(url, e.toString());
+            }
 
-                // open a file corresponding to the url
-                FileOutputStream fout;
-                try {
-                    constructFilePath(getFilePath(u));
-                    File file = new File(getFilePath(u));
-                    file.createNewFile();
-                    fout = new FileOutputStream(file, false);
-                } catch (IOException e) {
-                    throw new UrlCacheException("The cache file at " + getFilePath(u) + " cannot be updated");
+            requestTime = System.currentTimeMillis();
+            long requestStart = System.nanoTime();
+            try {
+                conn.sendRequest(formRequest(u, entry));
+                statusCode = readResponseHead(conn, headers, reason);
+                stats.getFirstByteTimes().record(System.nanoTime() - requestStart);
+            } catch (IOException e) {
+                statusCode = -1;
+            }
+
+            // statusCode was never set
+            if (statusCode == -1) {
+                boolean retry = attempt == 0 && conn.isReused();
+                conn.invalidate();
+                pool.release(conn);
+                if (!retry) {
+                    backoff.failure(origin, System.currentTimeMillis());
+                    throw failed(url, "HTTP response was not complete");
                 }
+                headers.clear();
+                reason.setLength(0);
+            }
+        }
+        long responseTime = System.currentTimeMillis();
+        if (statusCode >= 500) {
+            backoff.failure(origin, responseTime);
+        } else {
+            backoff.success(origin);
+        }
 
-                // write remaining bytes in the response into the file
-                try {
-                    while ((i = in.read()) != -1) {
-                        fout.write(i);
+        // handle response, the connection goes back to the pool afterwards
+        try {
+            switch (statusCode) {
+                case 304:
+                    // the catalog says the file is up to date
+                    if (entry != null) {
+                        synchronized (catalog) {
+                            entry.update(headers, requestTime, responseTime);
+                        }
+                        saveCatalog();
+                        if (!background) {
+                            stats.revalidated(cachedSize);
+                        }
+                    }
+                    System.out.println("Cached object is up to date. " + path);
+                    return FetchResult.Outcome.REVALIDATED;
+                case 200:
+                    // download new file
+                    CacheEntry fetched = new CacheEntry(headers, requestTime, responseTime);
+                    if (fetched.getLastModified() == 0L && fetched.getFreshnessLifetime() == 0L) {
+                        if (sink != null) {
+                            // cannot be cached, but can still be passed on
+                            forward(url, conn, sink, statusCode, reason.toString(), headers);
+                            return FetchResult.Outcome.FORWARDED;
+                        }
+                        discardBody(conn, statusCode, headers);
+                        throw new UrlCacheException("No Last-Modified header in response");
+                    }
+                    if (sink != null) {
+                        try {
+                            tee = sink.begin(statusCode, reason.toString(), headers);
+                        } catch (IOException e) {
+                            // the object is still cached
+                            tee = null;
+                        }
                     }
-                } catch (IOException e) {
-                    throw new UrlCacheException("File writing failed: " + e.toString());
-                }
 
-                // close the file
-                try {
-                    fout.flush();
-                    fout.close();
-                } catch (IOException e) {
-                    throw new UrlCacheException(e.toString());
-                }
+                    // download into a temporary file, hashing the content on the way
+                    // (body blocks are written straight through, no extra buffering)
+                    File temp;
+                    DigestOutputStream fout;
+                    try {
+                        temp = blobs.createTempFile();
+                        fout = new DigestOutputStream(new FileOutputStream(temp, false), MessageDigest.getInstance("SHA-256"));
+                    } catch (UrlCacheException | IOException | NoSuchAlgorithmException e) {
+                        conn.invalidate();
+                        throw new UrlCacheException("The cache file for " + url + " cannot be created: " + e.getMessage());
+                    }
+
+                    // write the body of the response into the file
+                    boolean complete = false;
+                    long size;
+                    try {
+                        long bodyStart = System.nanoTime();
+                        size = conn.readBody(tee == null ? fout : new TeeOutputStream(fout, tee), statusCode, headers);
+                        fout.close();
+                        stats.getBodyTimes().record(System.nanoTime() - bodyStart);
+                        complete = true;
+                    } catch (IOException e) {
+                        conn.invalidate();
+                        throw new UrlCacheException("File writing failed: " + e.toString());
+                    } finally {
+                        if (!complete) {
+                            try {
+                                fout.close();
+                            } catch (IOException e) {
+                                // the partial file is deleted either way
+                            }
+                            temp.delete();
+                        }
+                    }
+
+                    // move the complete file into place (or drop it if the content is already stored);
+                    // readers see the old or the new object, never a partial one
+                    String hash = toHex(fout.getMessageDigest().digest());
+                    path = blobs.store(temp, hash);
+                    fetched.setBlob(hash);
 
-                // update the catalog
-                catalog.put(url, lm);
-                dumpCache(catalogPath);
+                    // update the catalog, the replaced content is deleted if nothing else refers to it
+                    CacheEntry replaced;
+                    synchronized (catalog) {
+                        replaced = catalog.put(url, fetched);
+                        catalogKeys.put(u.toString(), url);
+                    }
+                    if (replaced != null && replaced.getBlob() != null) {
+                        blobs.release(replaced.getBlob());
+                        stats.evicted();
+                    }
+                    saveCatalog();
+                    if (!background) {
+                        stats.downloaded(size);
+                    }
+
+                    System.out.println("Object downloaded to " + path);
+                    return FetchResult.Outcome.DOWNLOADED;
+                default:
+                    // statusCode was not 200 or 304
+                    if (sink != null) {
+                        forward(url, conn, sink, statusCode, reason.toString(), headers);
+                        return FetchResult.Outcome.FORWARDED;
+                    }
+                    discardBody(conn, statusCode, headers);
+                    throw failed(url, "Response came back with code " + statusCode);
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * Get the request counters and origin timings
+     * @returns CacheStats the live statistics of this cache
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Print the statistics to stdout at a fixed interval until close() is called
+     * @param period	the interval (ms)
+     */
+    public synchronized void startStatsDump(long period) {
+        if (statsDump != null) {
+            statsDump.shutdown();
+        }
+        statsDump = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "UrlCache-stats");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        statsDump.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                System.out.println("UrlCache stats:" + System.lineSeparator() + stats);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the worker threads and close the pooled connections to origin servers
+     */
+    public void close() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            if (statsDump != null) {
+                statsDump.shutdown();
+            }
+        }
+        pool.closeAll();
+    }
 
-                System.out.println("Object downloaded to " + getFilePath(u));
-                break;
-            default:
-                // statusCode was not 200 or 304
-                throw new UrlCacheException("Response came back with code " + statusCode);
+    /**
+     * Get the worker pool for parallel fetches, creating it on first use
+     * @returns ExecutorService the worker pool
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(maxConcurrentFetches, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    // workers must not keep the program alive
+                    Thread t = new Thread(r, "UrlCache-fetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
+        return executor;
+    }
 
-        // Close streams
+    /**
+     * Run a fetch on a worker thread once its origin has a connection slot for it
+     * @param url the fully qualified URL the task fetches
+     * @param task the fetch
+     * @param rejected called instead of the fetch if the cache is closed before it runs
+     */
+    private void submit(String url, Runnable task, Runnable rejected) {
+        String origin;
         try {
-            in.close();
-            out.close();
-            sock.close();
-        } catch (IOException e) {
-            throw new UrlCacheException(e.toString());
+            Url u = Url.parse(url);
+            origin = u.getBasename() + ":" + u.getPort();
+        } catch (UrlCacheException e) {
+            // the fetch fails at once without contacting anything
+            origin = "";
+        }
+        originQueues.execute(origin, task, rejected, getExecutor());
+    }
+
+    /**
+     * Get the error for a fetch that was not run because the cache is closed
+     * @param url the fully qualified URL
+     * @returns UrlCacheException the error
+     */
+    private UrlCacheException closed(String url) {
+        return new UrlCacheException("The cache was closed before " + url + " was fetched");
+    }
+
+    /**
+     * Write the catalog unless a batch is in progress (the batch writes it when done)
+     * @throws UrlCacheException when an error/exception is encountered
+     */
+    private void saveCatalog() throws UrlCacheException {
+        if (batches.get() == 0) {
+            dumpCache(catalogPath);
         }
     }
 
@@ -258,10 +1048,12 @@ public class UrlCache {
      */
     public long getLastModified(String url) throws UrlCacheException {
         // if the object is in the catalog
-        if (catalog.containsKey(url)) {
-            return catalog.get(url);
-        } else {
-            throw new UrlCacheException("Object does not exist: " + url);
+        synchronized (catalog) {
+            if (catalog.containsKey(url)) {
+                return catalog.get(url).getLastModified();
+            } else {
+                throw new UrlCacheException("Object does not exist: " + url);
+            }
         }
     }
 
@@ -272,11 +1064,24 @@ public class UrlCache {
      * @throws UrlCacheException when an error/exception is encountered
      */
     public void dumpCache(String path) throws UrlCacheException {
-        // open file and write the object
+        // write the object to a temporary file and rename it over the old catalog,
+        // so a crash while writing leaves the previous catalog intact.
+        // Only the copy is made under the catalog lock, so lookups are not held up by the disk.
         try {
-            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(path));
-            out.writeObject(catalog);
-            out.close();
+            synchronized (catalogFileLock) {
+                HashMap<String, CacheEntry> snapshot;
+                synchronized (catalog) {
+                    snapshot = new HashMap<String, CacheEntry>(catalog.size() * 2);
+                    for (Map.Entry<String, CacheEntry> e : catalog.entrySet()) {
+                        snapshot.put(e.getKey(), new CacheEntry(e.getValue()));
+                    }
+                }
+                File temp = new File(path + ".tmp");
+                ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                out.writeObject(snapshot);
+                out.close();
+                Files.move(temp.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
         } catch (FileNotFoundException e) {
             throw new UrlCacheException("Cannot dump catalog: bad path: " + path);
         } catch (IOException e) {
@@ -285,76 +1090,165 @@ public class UrlCache {
     }
 
     /**
-     * Get a cache file path from a Url Object
-     * @param u the Url to derive the path from
-     * @returns String file path
+     * Get the path of the cached copy of an object. Objects with identical content share a file.
+     * @param url the fully qualified URL
+     * @returns String file path, or null if the object is not in the cache
+     */
+    public String getFilePath(String url) {
+        synchronized (catalog) {
+            CacheEntry entry = catalog.get(url);
+            return entry == null || entry.getBlob() == null ? null : blobs.getPath(entry.getBlob());
+        }
+    }
+
+    /**
+     * Get the path of the cached copy of an object from a Url Object
+     * @param u the Url of the object; any cached url with the same host, port and path matches
+     * @returns String file path, or null if the object is not in the cache
      */
     public String getFilePath(Url u) {
-        return cacheRoot + "/" + u.getBasename() + u.getPathname();
+        synchronized (catalog) {
+            String key = catalogKeys.get(u.toString());
+            CacheEntry entry = key == null ? null : catalog.get(key);
+            return entry == null || entry.getBlob() == null ? null : blobs.getPath(entry.getBlob());
+        }
     }
 
     /**
-     * Creates a file/directory if it does not exist
-     * @param path the file path
-     * @param fod true for file, false for dir
-     * @throws UrlCacheException if a file or directory cannot be created.
+     * Format a hash as lower case hex digits
+     * @param digest the hash
+     * @returns String the hex digits
      */
-    public void createFileDirectory(String path, boolean fod) throws UrlCacheException {
-        File f = new File(path);
-        // if it is supposed to be a file
-        if (fod) {
-            if (f.isDirectory()) {
-                throw new UrlCacheException("Cannot create cache file when a directory exists with the same name");
-            } else {
-                try {
-                    // creates the file if it is not there, does nothing if it is
-                    f.createNewFile();
-                } catch (IOException e) {
-                    throw new UrlCacheException(e.toString());
-                }
+    private static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(digest[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Form the request for an object, conditional if there is a cached copy
+     * @param u the Url of the object
+     * @param entry the catalog entry of the cached copy, or null
+     * @returns String the request head
+     */
+    private String formRequest(Url u, CacheEntry entry) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT+0000"));
+
+        StringBuilder request = new StringBuilder();
+        sendHeader(request, "GET " + u.getPathname() + " HTTP/1.1");
+        sendHeader(request, "Host: " + u.getBasename() + (u.getPort() == 80 ? "" : ":" + u.getPort()));
+        if (entry != null && entry.getLastModified() != 0L) {
+            sendHeader(request, "If-modified-since: " + format.format(new Date(entry.getLastModified())));
+        }
+        sendHeader(request, "Connection: keep-alive");
+
+        // end request
+        sendHeader(request);
+        return request.toString();
+    }
+
+    /**
+     * Read the status line and headers of a response
+     * @param conn the connection to read from
+     * @param headers map to fill with the headers, keyed by lower case name
+     * @param reason buffer to append the reason phrase of the status line to
+     * @returns int the status code, or -1 if the connection closed before a response
+     * @throws IOException if the read fails or the status line is malformed
+     */
+    private int readResponseHead(HttpConnection conn, HashMap<String, String> headers, StringBuilder reason) throws IOException {
+        String status = conn.readLine();
+        if (status == null) {
+            return -1;
+        }
+        if (printVerbose) {
+            System.out.println("< " + status + "\\r\\n");
+        }
+        // check for the status
+        if (!status.matches("^HTTP/1\\.[01] [0-9]{3}.*$")) {
+            throw new IOException("Bad status line: " + status);
+        }
+        String[] parts = status.split(" ");
+        if (status.length() > 13) {
+            reason.append(status.substring(13).trim());
+        }
+
+        // collect the header fields (names are case insensitive) until the empty line
+        String line;
+        while ((line = conn.readLine()) != null && line.length() > 0) {
+            if (printVerbose) {
+                System.out.println("< " + line + "\\r\\n");
             }
-        } else {
-            if (f.isFile()) {
-                throw new UrlCacheException("Cannot create a directory when a file exists with the same name");
-            } else {
-                // creates the directory if it is not there, does nothing if it is
-                f.mkdir();
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
             }
         }
+        if (line == null) {
+            throw new IOException("Connection closed inside response headers");
+        }
+
+        conn.checkPersistence(parts[0], headers);
+        return Integer.parseInt(parts[1]);
     }
 
     /**
-     * Construct the file path if it does not exist
-     * @param path the file path
-     * @throws UrlCacheException if a file or directory cannot be created.
+     * Pass a response that is not cached on to a sink
+     * @param url the fully qualified URL, for the error message
+     * @param conn the connection to read the body from
+     * @param sink where to pass the response on to
+     * @param statusCode the response status
+     * @param reason the reason phrase of the response
+     * @param headers the response headers
+     * @throws UrlCacheException if the body cannot be read or passed on
      */
-    public void constructFilePath(String path) throws UrlCacheException {
-        // split the path into parts
-        String[] paths = path.split("/");
-        // iterate through the parts and make sure the directory/file exists
-        for (int i = 0; i < paths.length; i++) {
-            createFileDirectory(String.join("/", Arrays.copyOfRange(paths, 0, i + 1)), i == paths.length - 1 ? true : false);
+    private void forward(String url, HttpConnection conn, ResponseSink sink, int statusCode, String reason, HashMap<String, String> headers) throws UrlCacheException {
+        try {
+            OutputStream out = sink.begin(statusCode, reason, headers);
+            long size = conn.readBody(out, statusCode, headers);
+            out.flush();
+            stats.forwarded(size);
+        } catch (IOException e) {
+            conn.invalidate();
+            throw new UrlCacheException("Passing on " + url + " failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Read and drop the body of a response that is not cached, so the connection can be reused
+     * @param conn the connection to read from
+     * @param statusCode the response status
+     * @param headers the response headers
+     */
+    private void discardBody(HttpConnection conn, int statusCode, HashMap<String, String> headers) {
+        try {
+            conn.readBody(null, statusCode, headers);
+        } catch (IOException e) {
+            conn.invalidate();
         }
     }
 
     /**
-     * Write a string into a stream
-     * @param out the stream
+     * Append a header line to a request
+     * @param request the request being formed
      * @param msg the string
      */
-    public void sendHeader(PrintWriter out, String msg) {
-        out.println(msg);
+    public void sendHeader(StringBuilder request, String msg) {
+        request.append(msg).append("\r\n");
         if (printVerbose) {
             System.out.println("> " + msg + "\\r\\n");
         }
     }
 
     /**
-     * Write "\r\n"into a stream
-     * @param out the stream
+     * Append "\r\n" to a request
+     * @param request the request being formed
      */
-    public void sendHeader(PrintWriter out) {
-        out.println();
+    public void sendHeader(StringBuilder request) {
+        request.append("\r\n");
         if (printVerbose) {
             System.out.println("> \\r\\n");
         }
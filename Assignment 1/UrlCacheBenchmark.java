@@ -0,0 +1,278 @@
+
+/**
+ * Benchmarks for UrlCache that run offline against a LoopbackOrigin.
+ *
+ * Measures throughput and latency of fresh hits, 304 revalidations and full
+ * downloads for several object sizes and thread counts, then times Url parsing,
+ * response header parsing and catalog persistence on their own. Every call reads
+ * the content through openObject, so MB/s counts the bytes the caller received.
+ *
+ * Run it from a scratch directory: like Tester, the cache keeps its catalog and
+ * objects in the working directory.
+ *
+ * usage: java UrlCacheBenchmark [seconds per case]
+ *
+ * @author Mitchell Sawatzky
+ * @version 1.0
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UrlCacheBenchmark {
+
+    /**
+     * Object sizes in bytes
+     */
+    private static final int[] SIZES = {1024, 64 * 1024, 1024 * 1024};
+
+    /**
+     * Numbers of threads calling the cache at the same time
+     */
+    private static final int[] THREADS = {1, 4, 16};
+
+    /**
+     * Number of distinct objects per case, shared by its threads
+     */
+    private static final int OBJECTS = 16;
+
+    /**
+     * Keeps the JIT from removing the work of a microbenchmark
+     */
+    static volatile long sink;
+
+    /**
+     * The real stdout; the cache prints a line per request, which is discarded while measuring
+     */
+    private static PrintStream out = System.out;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = 2.0;
+
+        // parse command line args
+        if (args.length == 1) {
+            seconds = Double.parseDouble(args[0]);
+        }
+        long measure = (long) (seconds * 1e9);
+        long warmup = measure / 4;
+
+        LoopbackOrigin origin = new LoopbackOrigin();
+        origin.start();
+        UrlCache cache = new UrlCache();
+        // Url only accepts host names, map one to the loopback origin
+        cache.addHost("origin.benchmark", "127.0.0.1");
+        String base = "http://origin.benchmark:" + origin.getPort();
+
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        try {
+            out.println("origin at " + base + ", " + seconds + " s per case");
+            out.println();
+            out.println(String.format("%-10s %8s %7s %10s %10s %10s %10s %10s",
+                "path", "size", "threads", "ops/s", "MB/s", "p50 us", "p99 us", "max us"));
+
+            String[] kinds = {"fresh", "revalidate", "miss"};
+            for (String kind : kinds) {
+                for (int size : SIZES) {
+                    String[] urls = new String[OBJECTS];
+                    for (int i = 0; i < OBJECTS; i++) {
+                        urls[i] = base + "/" + kind + "/" + size + "/" + i;
+                        // the first fetch of every object is a download, keep it out of the measurement
+                        cache.getObject(urls[i]);
+                    }
+                    for (int threads : THREADS) {
+                        run(cache, urls, threads, warmup);
+                        CacheStats.Histogram latency = new CacheStats.Histogram();
+                        AtomicLong bytes = new AtomicLong();
+                        long ops = run(cache, urls, threads, measure, latency, bytes);
+                        double rate = ops / seconds;
+                        out.println(String.format("%-10s %8d %7d %10.0f %10.1f %10d %10d %10d",
+                            kind, size, threads, rate, bytes.get() / seconds / (1024 * 1024),
+                            latency.getPercentile(0.5), latency.getPercentile(0.99), latency.getMax()));
+                    }
+                }
+            }
+
+            out.println();
+            out.println(String.format("%-28s %12s", "microbenchmark", "ns/op"));
+            micro(cache, base, measure);
+        } finally {
+            System.setOut(out);
+            cache.close();
+            origin.shutdown();
+        }
+    }
+
+    /**
+     * Warm up a case without recording latencies
+     * @param cache the cache under test
+     * @param urls the objects of the case
+     * @param threads the number of threads
+     * @param nanos how long to run
+     */
+    private static void run(UrlCache cache, String[] urls, int threads, long nanos) throws Exception {
+        run(cache, urls, threads, nanos, new CacheStats.Histogram(), new AtomicLong());
+    }
+
+    /**
+     * Call openObject and read the content from several threads for a fixed time
+     * @param cache the cache under test
+     * @param urls the objects of the case, each thread starts at a different one
+     * @param threads the number of threads
+     * @param nanos how long to run
+     * @param latency receives the time of every call
+     * @param bytes receives the number of content bytes read
+     * @returns long the number of calls completed
+     */
+    private static long run(final UrlCache cache, final String[] urls, int threads, long nanos,
+                            final CacheStats.Histogram latency, final AtomicLong bytes) throws Exception {
+        final long deadline = System.nanoTime() + nanos;
+        final AtomicLong ops = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    int i = first;
+                    long n = 0;
+                    long read = 0;
+                    byte[] buffer = new byte[64 * 1024];
+                    long now;
+                    while ((now = System.nanoTime()) < deadline) {
+                        try {
+                            InputStream in = cache.openObject(urls[i++ % urls.length]);
+                            int k;
+                            while ((k = in.read(buffer)) != -1) {
+                                read += k;
+                            }
+                            in.close();
+                            latency.record(System.nanoTime() - now);
+                            n++;
+                        } catch (UrlCacheException | IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    ops.addAndGet(n);
+                    bytes.addAndGet(read);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failures.get() > 0) {
+            out.println(failures.get() + " calls failed");
+        }
+        return ops.get();
+    }
+
+    /**
+     * Time the building blocks of a request on their own
+     * @param cache the cache under test, its catalog holds the objects of the cases
+     * @param base the origin url
+     * @param nanos how long to run each microbenchmark
+     */
+    private static void micro(final UrlCache cache, String base, long nanos) throws Exception {
+        final String[] urls = new String[64];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = base + "/fresh/1024/some/longer/path/" + i + ".html";
+        }
+
+        time("Url.parse (pooled)", nanos, new Op() {
+            public long run(int i) throws Exception {
+                return Url.parse(urls[i & 63]).getPort();
+            }
+        });
+
+        time("new Url", nanos, new Op() {
+            public long run(int i) throws Exception {
+                return new Url(urls[i & 63]).getPort();
+            }
+        });
+
+        final HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("date", "Wed, 19 Oct 2016 10:00:00 GMT");
+        headers.put("last-modified", "Sat, 01 Oct 2016 00:00:00 GMT");
+        headers.put("cache-control", "public, max-age=3600");
+        headers.put("content-length", "1024");
+        headers.put("content-type", "text/html");
+        time("CacheEntry (header parsing)", nanos, new Op() {
+            public long run(int i) throws Exception {
+                return new CacheEntry(headers, 0L, 0L).getFreshnessLifetime();
+            }
+        });
+
+        time("CacheEntry.parseHttpDate", nanos, new Op() {
+            public long run(int i) throws Exception {
+                return CacheEntry.parseHttpDate("Sat, 01 Oct 2016 00:00:00 GMT");
+            }
+        });
+
+        final String path = "./catalog-benchmark.ser";
+        time("UrlCache.dumpCache", nanos, new Op() {
+            public long run(int i) throws Exception {
+                cache.dumpCache(path);
+                return i;
+            }
+        });
+        new File(path).delete();
+    }
+
+    /**
+     * One operation of a microbenchmark
+     */
+    private interface Op {
+        /**
+         * Do the work once
+         * @param i the iteration number
+         * @returns long a value depending on the work, so it cannot be optimized away
+         */
+        long run(int i) throws Exception;
+    }
+
+    /**
+     * Warm up and time an operation, then print the time per operation
+     * @param name the name to print
+     * @param nanos how long to run
+     * @param op the operation
+     */
+    private static void time(String name, long nanos, Op op) throws Exception {
+        // the first quarter is warmup
+        long warmupEnd = System.nanoTime() + nanos / 4;
+        int i = 0;
+        long acc = 0;
+        while (System.nanoTime() < warmupEnd) {
+            acc += op.run(i++);
+        }
+
+        // check the clock once per batch so it does not dominate short operations
+        long start = System.nanoTime();
+        long end = start + nanos;
+        long ops = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            for (int j = 0; j < 256; j++) {
+                acc += op.run(i++);
+            }
+            ops += 256;
+        }
+        sink = acc;
+        out.println(String.format("%-28s %12.1f", name, (double) (now - start) / ops));
+    }
+}
@@ -0,0 +1,175 @@
+
+/**
+ * CongestionWindow Class
+ *
+ * Congestion window of a FastFtp sender, in segments. It starts with slow start
+ * (one segment more per segment acknowledged) up to the slow start threshold, then
+ * grows in congestion avoidance either linearly (Reno, RFC 5681) or along a cubic
+ * curve around the window of the last loss (CUBIC, RFC 8312). A loss detected from
+ * SACKs shrinks the window multiplicatively; a retransmission timeout restarts slow
+ * start from one segment. The window never exceeds the given maximum.
+ *
+ */
+public class CongestionWindow {
+    /**
+     * Congestion avoidance algorithms
+     */
+    public enum Algorithm {
+        /** additive increase of one segment per RTT, halving on loss */
+        RENO,
+        /** cubic growth independent of the RTT, reducing to 70% on loss */
+        CUBIC
+    }
+
+    /**
+     * CUBIC multiplicative decrease factor and scaling constant
+     */
+    private static final double BETA = 0.7;
+    private static final double C = 0.4;
+
+    /**
+     * Smallest window after a loss (segments)
+     */
+    private static final double MIN_WINDOW = 2;
+
+    /**
+     * The algorithm in use
+     */
+    private Algorithm algorithm;
+
+    /**
+     * Congestion window (segments)
+     */
+    private double cwnd;
+
+    /**
+     * Slow start threshold (segments)
+     */
+    private double ssthresh;
+
+    /**
+     * Largest window (segments)
+     */
+    private double maxWindow;
+
+    /**
+     * CUBIC: window before the last reduction, and the one before that
+     */
+    private double wMax;
+    private double wLastMax;
+
+    /**
+     * CUBIC: start of the current congestion avoidance epoch (ms), -1 if none
+     */
+    private long epochStart = -1;
+
+    /**
+     * CUBIC: time from the start of the epoch for the window to grow back to wMax (s)
+     */
+    private double k;
+
+    /**
+     * Constructor
+     *
+     * @param algorithm		The congestion avoidance algorithm
+     * @param initialWindow	The window to start with (segments)
+     * @param maxWindow		The largest window (segments)
+     */
+    public CongestionWindow (Algorithm algorithm, int initialWindow, int maxWindow) {
+        this.algorithm = algorithm;
+        this.maxWindow = maxWindow;
+        cwnd = Math.min(initialWindow, maxWindow);
+        ssthresh = maxWindow;
+    }
+
+    /**
+     * Grow the window for newly acknowledged segments
+     *
+     * @param acked	The number of segments the ACK acknowledged
+     * @param now	The current time (ms)
+     * @param srtt	The smoothed round trip time (ms), or -1 if unknown
+     */
+    public synchronized void onAck (int acked, long now, double srtt) {
+        for (int i = 0; i < acked; i++) {
+            if (cwnd < ssthresh) {
+                // slow start
+                cwnd += 1;
+            } else if (algorithm == Algorithm.CUBIC) {
+                // above the target (eg. just after a reduction) the window holds, it never shrinks on an ACK
+                cwnd += Math.max(0, (cubicTarget(now, srtt) - cwnd) / cwnd);
+            } else {
+                // one segment per window of ACKs
+                cwnd += 1 / cwnd;
+            }
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    /**
+     * Shrink the window after a segment loss found without a timeout.
+     * Call it at most once per window of data.
+     *
+     * @param now	The current time (ms)
+     */
+    public synchronized void onLoss (long now) {
+        if (algorithm == Algorithm.CUBIC) {
+            // fast convergence: give up bandwidth faster while it keeps shrinking
+            wMax = cwnd < wLastMax ? cwnd * (1 + BETA) / 2 : cwnd;
+            wLastMax = cwnd;
+            cwnd = Math.max(MIN_WINDOW, cwnd * BETA);
+            epochStart = -1;
+        } else {
+            cwnd = Math.max(MIN_WINDOW, cwnd / 2);
+        }
+        ssthresh = cwnd;
+    }
+
+    /**
+     * Restart slow start after a retransmission timeout
+     *
+     * @param inFlight	The number of segments sent and not acknowledged
+     */
+    public synchronized void onTimeout (int inFlight) {
+        double factor = algorithm == Algorithm.CUBIC ? BETA : 0.5;
+        wMax = wLastMax = cwnd;
+        ssthresh = Math.max(MIN_WINDOW, inFlight * factor);
+        cwnd = 1;
+        epochStart = -1;
+    }
+
+    /**
+     * Get the number of segments that may be in flight
+     *
+     * @return the window (segments), at least 1
+     */
+    public synchronized int getWindow () {
+        return Math.max(1, (int) cwnd);
+    }
+
+    /**
+     * CUBIC: the window to reach one RTT from now, no less than a Reno flow would have
+     *
+     * @param now	The current time (ms)
+     * @param srtt	The smoothed round trip time (ms), or -1 if unknown
+     * @return the target window (segments)
+     */
+    private double cubicTarget (long now, double srtt) {
+        if (epochStart < 0) {
+            // first ACK of this congestion avoidance phase
+            epochStart = now;
+            if (wMax < cwnd) {
+                wMax = cwnd;
+            }
+            k = Math.cbrt((wMax - cwnd) / C);
+        }
+        double rtt = Math.max(srtt, 1) / 1000.0;
+        double t = (now - epochStart) / 1000.0 + rtt;
+        double cubic = C * Math.pow(t - k, 3) + wMax;
+
+        // TCP friendly region: grow at least as fast as Reno would
+        double reno = wMax * BETA + 3 * (1 - BETA) / (1 + BETA) * t / rtt;
+
+        // at most half a window more per RTT
+        return Math.min(Math.max(cubic, reno), cwnd * 1.5);
+    }
+}
@@ -11,17 +11,24 @@
 }*/
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.logging.*;
-import java.util.TimerTask;
-import java.util.Timer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.net.Socket;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
-import java.net.SocketTimeoutException;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import cpsc441.a3.Segment;
-import cpsc441.a3.TxQueue;
 
 /**
  * FastFtp Class
@@ -30,6 +37,18 @@ import cpsc441.a3.TxQueue;
  * The main mehtod is send() which takes a file name as input argument and send the file
  * to the specified destination host.
  *
+ * Lost segments are recovered with Go-Back-N by default. In selective repeat mode only
+ * the segments the receiver is missing are resent; this needs a receiver that reports
+ * the segments it buffered out of order (SACK), such as FastFtpReceiver.
+ *
+ * With pacing on, new segments and retransmissions are all sent by the sender thread,
+ * spaced evenly over the round trip time instead of a window at a time.
+ *
+ * Receivers that support it (FastFtpReceiver) can agree on payloads larger than
+ * Segment.MAX_PAYLOAD_SIZE during the handshake. The sender then either uses the
+ * agreed size, or starts at the default and probes the path for the largest size
+ * that gets through; a retransmission always carries the slice its segment first had.
+ *
  */
 public class FastFtp {
     /**
@@ -38,10 +57,31 @@ public class FastFtp {
     private static final Logger LOGGER = Logger.getLogger(FastFtp.class.getName());
 
     /**
-     * Window Size (segs)
+     * Size of the segment header (bytes)
+     */
+    private static final int HEADER_SIZE = Segment.MAX_SEGMENT_SIZE - Segment.MAX_PAYLOAD_SIZE;
+
+    /**
+     * Largest number of new segments sent per wakeup of the sender
+     */
+    private static final int BURST = 32;
+
+    /**
+     * Window Size (segs), the initial window when congestion control is used
      */
     private int windowSize;
 
+    /**
+     * Congestion window, null to keep the window at windowSize
+     */
+    private CongestionWindow congestion;
+
+    /**
+     * Highest segment sent when the window was last reduced; losses up to it
+     * belong to the same congestion event and do not reduce the window again
+     */
+    private int recoveryPoint = -1;
+
     /**
      * Segment number
      */
@@ -58,23 +98,121 @@ public class FastFtp {
     private int lowerWindow;
 
     /**
-     * TimeoutLength (ms)
+     * Adaptive retransmission timeout
+     */
+    private RttEstimator rtt;
+
+    /**
+     * Bounds of the adaptive retransmission timeout (ms)
+     */
+    private static final long MIN_RTO = 10;
+    private static final long MAX_RTO = 60000;
+
+    /**
+     * Segments in the window that were sent more than once; by Karn's rule their
+     * ACKs are ambiguous and give no RTT sample
+     */
+    private HashSet<Integer> retransmitted;
+
+    /**
+     * The window; the sender thread adds segments and the ACK thread removes them,
+     * both while holding this object's monitor
+     */
+    private RingTxQueue window;
+
+    /**
+     * True to resend only missing segments (selective repeat), false for Go-Back-N
+     */
+    private boolean selectiveRepeat;
+
+    /**
+     * Selective repeat: segments in the window the receiver reported as buffered
      */
-    private int timeoutLength;
+    private HashSet<Integer> sacked;
 
     /**
-     * The window
+     * Time each segment in the window was last sent (System.nanoTime)
      */
-    private TxQueue window;
+    private HashMap<Integer, Long> sentAt;
+
+    /**
+     * Selective repeat: segments resent because later ones were SACKed, since their last timeout
+     */
+    private HashSet<Integer> fastRetransmitted;
+
+    /**
+     * Number of SACKed segments above a missing one after which it is resent without waiting for the timer
+     */
+    private static final int DUP_THRESHOLD = 3;
     /**
      * Control socket
      */
     private Socket tcpConnection;
 
     /**
-     * Data socket
+     * Data channel, connected to the receiver
      */
-    private DatagramSocket udpConnection;
+    private DatagramChannel udpChannel;
+
+    /**
+     * The file being sent; segment payloads are sliced from it on every send
+     */
+    private FileSegments segments;
+
+    /**
+     * Datagram buffers of the sender thread, one per segment of a burst
+     */
+    private ByteBuffer[] sendPool = new ByteBuffer[BURST];
+
+    /**
+     * Datagram buffer for retransmissions, used under the monitor
+     */
+    private ByteBuffer resendBuffer;
+
+    /**
+     * Payload size to ask the receiver for (bytes), 0 to keep Segment.MAX_PAYLOAD_SIZE
+     */
+    private int requestedPayload = 0;
+
+    /**
+     * True to probe the path for the largest payload up to the one agreed
+     */
+    private boolean probePath = false;
+
+    /**
+     * Largest payload agreed with the receiver (bytes)
+     */
+    private int maxPayload = Segment.MAX_PAYLOAD_SIZE;
+
+    /**
+     * Payload of the new segments (bytes)
+     */
+    private int payloadSize = Segment.MAX_PAYLOAD_SIZE;
+
+    /**
+     * File slice of every segment
+     */
+    private SegmentLayout layout;
+
+    /**
+     * Path MTU search, null if the path is not probed
+     */
+    private MtuProber prober;
+
+    /**
+     * Datagram of the path MTU probes
+     */
+    private ByteBuffer probeBuffer;
+
+    /**
+     * Spaces out the datagrams of the sender thread, null to send without pacing
+     */
+    private Pacer pacer;
+
+    /**
+     * Segments to retransmit when pacing, in order; the sender thread sends them
+     */
+    private LinkedHashSet<Integer> resendQueue = new LinkedHashSet<Integer>();
 
     /**
      * Streams for socket IO
@@ -83,24 +221,43 @@ public class FastFtp {
     private DataOutputStream tcpOut;
 
     /**
-     * Retransmission timer
+     * One scheduler thread for the retransmission timers of every transfer.
+     * Rearming a timer only queues a task; cancelled tasks are removed right away.
+     */
+    private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+
+    /**
+     * Retransmission timer, null while not running
      */
-    private Timer rtTimer;
+    private ScheduledFuture<?> rtTimer;
+
+    /**
+     * Incremented whenever the timer is cancelled or rearmed, so a timeout that
+     * was already running when that happened is ignored
+     */
+    private int timerGeneration = 0;
 
     /**
      * Handler class for when the rtoTimer expires
      */
-    class TimeoutHandler extends TimerTask {
+    class TimeoutHandler implements Runnable {
+        /**
+         * The timer generation this handler belongs to
+         */
+        private int generation;
+
         /**
          * Default constructor
          */
-        public TimeoutHandler () {}
+        public TimeoutHandler (int generation) {
+            this.generation = generation;
+        }
 
         /**
          * Gets called when the timer expires
          */
         public void run () {
-            processTimeout();
+            expire(generation);
         }
     };
 
@@ -111,43 +268,34 @@ public class FastFtp {
         /**
          * UDP connection
          */
-        private DatagramSocket conn;
-
-        /**
-         * Termination flag
-         */
-        private boolean keepGoing = true;
+        private DatagramChannel conn;
 
         /**
          * Default constructor
          */
-        public RecieverThread (DatagramSocket conn) {
+        public RecieverThread (DatagramChannel conn) {
             this.conn = conn;
-            try {
-                conn.setSoTimeout(timeoutLength);
-            } catch (SocketException e) {
-                LOGGER.severe("Could not set UDP timeout");
-                LOGGER.severe(e.getMessage());
-                System.exit(1);
-            }
         }
 
         /**
          * Starts the thread
          */
         public void run () {
-            DatagramPacket pkt = new DatagramPacket(new byte[Segment.MAX_SEGMENT_SIZE], Segment.MAX_SEGMENT_SIZE);
-            while (keepGoing) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(Segment.MAX_SEGMENT_SIZE);
+            while (true) {
                 try {
-                    conn.receive(pkt);
-                    processACK(new Segment(pkt));
-                } catch (SocketTimeoutException e) {
-                    // OK - check the while condition and try again
-                    // LOGGER.finest("UDP timed out - check while loop");
-                    continue;
+                    // blocks until an ACK arrives or stopRunning closes the channel
+                    buf.clear();
+                    conn.read(buf);
+                    buf.flip();
+                    byte[] bytes = new byte[buf.remaining()];
+                    buf.get(bytes);
+                    processACK(new Segment(bytes));
                 } catch (PortUnreachableException e) {
                     LOGGER.severe("The server is not on a reachable port");
                     LOGGER.severe(e.getMessage());
+                } catch (ClosedChannelException e) {
+                    break;
                 } catch (IOException e) {
                     LOGGER.severe("UDP read failed");
                     LOGGER.severe(e.getMessage());
@@ -158,10 +306,15 @@ public class FastFtp {
         }
 
         /**
-         * Asks nicely for the thread to stop
+         * Stops the thread by closing the channel it reads from
          */
         public void stopRunning () {
-            keepGoing = false;
+            try {
+                conn.close();
+            } catch (IOException e) {
+                LOGGER.severe("Could not close the data channel");
+                LOGGER.severe(e.getMessage());
+            }
         }
     }
 
@@ -169,18 +322,73 @@ public class FastFtp {
      * Constructor to initialize the program
      *
      * @param windowSize	Size of the window for Go-Back_N (in segments)
-     * @param rtoTimer		The time-out interval for the retransmission timer (in milli-seconds)
+     * @param rtoTimer		The initial time-out interval for the retransmission timer (in milli-seconds)
      */
     public FastFtp (int windowSize, int rtoTimer) {
+        this(windowSize, rtoTimer, false);
+    }
+
+    /**
+     * Constructor to initialize the program
+     *
+     * @param windowSize	Size of the window (in segments)
+     * @param rtoTimer		The initial time-out interval for the retransmission timer (in milli-seconds)
+     * @param selectiveRepeat	true to resend only the segments the receiver is missing, false for Go-Back-N
+     */
+    public FastFtp (int windowSize, int rtoTimer, boolean selectiveRepeat) {
+        this(windowSize, windowSize, rtoTimer, selectiveRepeat, null);
+    }
+
+    /**
+     * Constructor to initialize the program with congestion control
+     *
+     * @param windowSize	Initial size of the window (in segments)
+     * @param maxWindowSize	Largest size of the window, the capacity of the transmission queue (in segments)
+     * @param rtoTimer		The initial time-out interval for the retransmission timer (in milli-seconds)
+     * @param selectiveRepeat	true to resend only the segments the receiver is missing, false for Go-Back-N
+     * @param algorithm		The congestion avoidance algorithm, or null to keep the window at windowSize
+     */
+    public FastFtp (int windowSize, int maxWindowSize, int rtoTimer, boolean selectiveRepeat, CongestionWindow.Algorithm algorithm) {
         this.windowSize = windowSize;
-        timeoutLength = rtoTimer;
-        rtTimer = new Timer(true);
-        window = new TxQueue(windowSize);
+        if (algorithm != null) {
+            congestion = new CongestionWindow(algorithm, windowSize, maxWindowSize);
+        }
+        this.selectiveRepeat = selectiveRepeat;
+        sacked = new HashSet<Integer>();
+        sentAt = new HashMap<Integer, Long>();
+        fastRetransmitted = new HashSet<Integer>();
+        rtt = new RttEstimator(rtoTimer, MIN_RTO, MAX_RTO);
+        retransmitted = new HashSet<Integer>();
+        window = new RingTxQueue(algorithm != null ? maxWindowSize : windowSize);
         segNum = 0;
         upperWindow = 0;
         lowerWindow = 0;
     }
 
+    /**
+     * Turn pacing on or off for the next transfer
+     *
+     * @param gain	Multiple of window / SRTT to send at (eg. 1.25), 0 to send without pacing
+     */
+    public void setPacing (double gain) {
+        pacer = gain > 0 ? new Pacer(gain) : null;
+    }
+
+    /**
+     * Ask the receiver for larger segments in the next transfer. Only receivers that
+     * support it, like FastFtpReceiver, understand the request.
+     *
+     * @param payload	Largest payload to use (bytes), 0 for Segment.MAX_PAYLOAD_SIZE.
+     *					The payload is smaller if a window of it does not fit in the
+     *					socket buffers of both ends.
+     * @param probe		true to start at Segment.MAX_PAYLOAD_SIZE and probe the path
+     *					for the largest payload that gets through
+     */
+    public void setSegmentSize (int payload, boolean probe) {
+        requestedPayload = payload;
+        probePath = probe;
+    }
+
 
     /**
      * Sends the specified file to the specified destination host:
@@ -243,59 +451,113 @@ public class FastFtp {
                 }
             }
 
+            // agree on the segment size; payloads up to the default need no agreement
+            boolean negotiate = requestedPayload > Segment.MAX_PAYLOAD_SIZE;
+            int largestWindow = congestion != null ? window.capacity() : windowSize;
+            int receiveBuffer = 0;
+            if (negotiate) {
+                try {
+                    tcpOut.writeByte(FastFtpReceiver.SEGMENT_SIZE_REQUEST);
+                    tcpOut.writeInt(requestedPayload);
+                    tcpOut.writeInt(largestWindow);
+                    tcpOut.flush();
+                    maxPayload = tcpIn.readInt();
+                    receiveBuffer = tcpIn.readInt();
+                } catch (IOException e) {
+                    LOGGER.severe("Segment size negotiation failed");
+                    LOGGER.severe(e.getMessage());
+                    System.exit(1);
+                }
+                if (maxPayload <= 0 || maxPayload > requestedPayload) {
+                    LOGGER.severe("Receiver agreed on an invalid segment payload: " + maxPayload);
+                    System.exit(1);
+                }
+            }
+
             // UDP connection
             try {
-                udpConnection = new DatagramSocket(tcpConnection.getLocalPort());
-                udpConnection.connect(tcpConnection.getRemoteSocketAddress());
+                udpChannel = DatagramChannel.open();
+                udpChannel.bind(new InetSocketAddress(tcpConnection.getLocalPort()));
+                udpChannel.connect(tcpConnection.getRemoteSocketAddress());
+                if (negotiate) {
+                    // a burst of a whole window has to fit in both socket buffers, or the segments
+                    // past them are dropped; use smaller segments if the buffers are too small
+                    long wanted = (long) largestWindow * (HEADER_SIZE + maxPayload);
+                    if (udpChannel.getOption(StandardSocketOptions.SO_SNDBUF) < wanted) {
+                        udpChannel.setOption(StandardSocketOptions.SO_SNDBUF, (int) Math.min(Integer.MAX_VALUE, wanted));
+                    }
+                    int buffer = Math.min(receiveBuffer, udpChannel.getOption(StandardSocketOptions.SO_SNDBUF));
+                    maxPayload = Math.max(Segment.MAX_PAYLOAD_SIZE, Math.min(maxPayload, buffer / largestWindow - HEADER_SIZE));
+                    LOGGER.fine("Segment payload of up to " + maxPayload + " bytes, socket buffers of " + buffer + " bytes");
+                    if (probePath) {
+                        prober = new MtuProber(Segment.MAX_PAYLOAD_SIZE, maxPayload);
+                        payloadSize = Segment.MAX_PAYLOAD_SIZE;
+                    } else {
+                        payloadSize = maxPayload;
+                    }
+                }
+                for (int i = 0; i < BURST; i++) {
+                    sendPool[i] = ByteBuffer.allocateDirect(HEADER_SIZE + maxPayload);
+                }
+                resendBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + maxPayload);
+                if (prober != null) {
+                    // a probe is a header and zeros, only its length changes
+                    probeBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + maxPayload);
+                    putHeader(probeBuffer, MtuProber.PROBE_SEQ);
+                }
             } catch (Exception e) {
                 LOGGER.severe("Could not start data socket");
                 LOGGER.severe(e.getMessage());
                 System.exit(1);
             }
+            layout = new SegmentLayout(payloadSize);
 
             // ACK reciever thread
             LOGGER.finer("Starting ACK thread");
-            RecieverThread ackThread = new RecieverThread(udpConnection);
+            RecieverThread ackThread = new RecieverThread(udpChannel);
             ackThread.start();
 
             // send the file
             LOGGER.finer("Starting file send");
-            FileInputStream fis;
             try {
-                fis = new FileInputStream(file);
-                LOGGER.finest("Available bytes: " + fis.available());
-                byte[] payload = new byte[Segment.MAX_PAYLOAD_SIZE];
-                int ret = 0;
-                while ((ret = fis.read(payload)) != -1) {
-                    LOGGER.finest("Creating segment @ seq " + segNum + " of payload length " + ret);
-                    upperWindow = segNum;
-                    byte[] pyld = new byte[ret];
-                    for (int i = 0; i < pyld.length; i++) {
-                        pyld[i] = payload[i];
-                    }
-                    Segment seg = new Segment(segNum, pyld);
-                    segNum += 1;
-                    while (window.isFull()) {
-                        Thread.yield();
-                    }
-                    LOGGER.finest("Window not full, sending segment");
-                    processSend(seg);
-                    // while (!window.isEmpty() && window.isFull()) {
-                    //     Thread.yield();
-                    // }
-                    LOGGER.finest("Grabbing more data");
-                }
-                fis.close();
-                LOGGER.finest("While loop completed. ret=" + ret);
-            } catch (FileNotFoundException e) {
-                LOGGER.severe("File not found, but was checked to exist");
-                System.exit(1);
+                segments = new FileSegments(file);
             } catch (IOException e) {
+                LOGGER.severe("Could not map the file");
                 LOGGER.severe(e.getMessage());
+                System.exit(1);
+            }
+            long offset = 0;
+            Segment[] burst = new Segment[BURST];
+            while (offset < segments.length()) {
+                int space = Math.min(BURST, awaitWindow());
+                if (pacer != null) {
+                    sendQueuedResends();
+                    space = pace(space);
+                }
+                if (space == 0) {
+                    continue;
+                }
+                if (prober != null) {
+                    probeMtu();
+                }
+                // build the burst outside the monitor, the ACK thread only waits for the sends
+                int count = 0;
+                while (count < space && offset < segments.length()) {
+                    int len = (int) Math.min(payloadSize, segments.length() - offset);
+                    LOGGER.finest("Creating segment @ seq " + segNum + " of payload length " + len);
+                    // the window only keeps the sequence number, encapsulateSegment slices the payload
+                    burst[count] = new Segment(segNum);
+                    encapsulateSegment(burst[count], sendPool[count]);
+                    segNum += 1;
+                    offset += len;
+                    count++;
+                }
+                LOGGER.finest("Window not full, sending " + count + " segments");
+                processSend(burst, sendPool, count);
             }
             LOGGER.fine("Waiting until window is empty");
-            while (!window.isEmpty()) {
-                Thread.yield();
+            while (!awaitEmptyWindow()) {
+                sendQueuedResends();
             }
             // shut down ack thread
             LOGGER.finer("Stopping ACK thread");
@@ -318,14 +580,15 @@ public class FastFtp {
 
             // cancel timer
             LOGGER.finest("Cancelling timer");
-            rtTimer.cancel();
+            cancelTimer();
 
             // clean up sockets
             try {
                 tcpIn.close();
                 tcpOut.close();
                 tcpConnection.close();
-                udpConnection.close();
+                udpChannel.close();
+                segments.close();
             } catch (IOException e) {
                 LOGGER.severe("Could not close sockets");
                 LOGGER.severe(e.getMessage());
@@ -340,35 +603,40 @@ public class FastFtp {
      * Send the segment to the UDP socket
      * @param seg   The segment to send
      */
-    public synchronized void processSend (Segment seg) {
-        // encapsulate the segment
-        DatagramPacket pkt = encapsulateSegment(seg);
-        // send the packet
-        try {
-            LOGGER.fine("SND: SEQ " + seg.getSeqNum() + " (Payload: " + seg.getLength() + ")");
-            udpConnection.send(pkt);
-        } catch (IOException e) {
-            LOGGER.severe("Could not send segment");
-            LOGGER.severe(e.getMessage());
-        }
-        // add the segment to the transmission queue
-        try {
-            window.add(seg);
-            if (window.size() == 1) {
-                // start the timer
-                LOGGER.finest("Starting the timer");
-                rtTimer = new Timer(true);
-                try {
-                    rtTimer.schedule(new TimeoutHandler(), timeoutLength);
-                } catch (IllegalStateException e) {
-                    LOGGER.warning("Timer was cancelled");
-                    rtTimer = new Timer(true);
-                    rtTimer.schedule(new TimeoutHandler(), timeoutLength);
-                }
+    public void processSend (Segment seg) {
+        processSend(new Segment[] {seg}, new ByteBuffer[] {encapsulateSegment(seg, ByteBuffer.allocateDirect(HEADER_SIZE + maxPayload))}, 1);
+    }
+
+    /**
+     * Send a burst of new segments to the UDP socket and add them to the window
+     * @param segs      The segments to send, in order
+     * @param datagrams Their datagrams, from encapsulateSegment
+     * @param count     The number of segments
+     */
+    public synchronized void processSend (Segment[] segs, ByteBuffer[] datagrams, int count) {
+        boolean wasEmpty = window.isEmpty();
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Segment seg = segs[i];
+            // send the packet
+            try {
+                LOGGER.fine("SND: SEQ " + seg.getSeqNum() + " (Payload: " + (datagrams[i].remaining() - HEADER_SIZE) + ")");
+                udpChannel.write(datagrams[i]);
+            } catch (IOException e) {
+                LOGGER.severe("Could not send segment");
+                LOGGER.severe(e.getMessage());
             }
-        } catch (InterruptedException e) {
-            LOGGER.severe("Could not add segment to the queue");
-            LOGGER.severe(e.getMessage());
+            // add the segment to the transmission queue, the sender only fills open window slots
+            if (!window.offer(seg)) {
+                LOGGER.severe("Could not add segment " + seg.getSeqNum() + " to the queue");
+            }
+            sentAt.put(seg.getSeqNum(), now);
+            upperWindow = seg.getSeqNum();
+        }
+        if (wasEmpty && count > 0) {
+            // start the timer
+            LOGGER.finest("Starting the timer");
+            restartTimer(rtt.getRto());
         }
     }
 
@@ -377,64 +645,460 @@ public class FastFtp {
      * @param ack   The ACK segment to process
      */
     public synchronized void processACK (Segment ack) {
+        if (ack.getSeqNum() == MtuProber.PROBE_SEQ) {
+            if (prober != null && ack.getLength() >= 4) {
+                prober.onReply(readInt(ack.getPayload(), 0));
+            }
+            return;
+        }
+        if (selectiveRepeat) {
+            processSelectiveACK(ack);
+            return;
+        }
         LOGGER.fine("RCV: ACK " + ack.getSeqNum());
         LOGGER.fine("Window: " + lowerWindow + " " + upperWindow);
         // if the ack is in the window
         if ((lowerWindow <= (ack.getSeqNum() - 1) && (ack.getSeqNum() - 1) <= upperWindow )) {
             // cancel the timer
             LOGGER.finest("Cancelling timer");
-            rtTimer.cancel();
-            while (window.element() != null && window.element().getSeqNum() < ack.getSeqNum()) {
-                lowerWindow = window.element().getSeqNum() + 1;
-                LOGGER.fine("Set lowerWindow to " + lowerWindow);
-                LOGGER.finest("window has size " + window.size() + " with empty " + window.isEmpty() + " with full " + window.isFull());
-                try {
-                    window.remove();
-                } catch (Exception e) {
-                    System.err.println("Exception when window.remove(): " + e);
-                    LOGGER.severe("Message: " + e.getMessage());
-                }
-            }
+            cancelTimer();
+            long now = System.nanoTime();
+            int acked = removeAcknowledged(ack.getSeqNum(), now);
+            LOGGER.fine("Set lowerWindow to " + lowerWindow);
+            LOGGER.finest("window has size " + window.size() + " with empty " + window.isEmpty() + " with full " + window.isFull());
+            grow(acked, now);
+            // wake up the sender waiting for window space
+            notifyAll();
             LOGGER.fine("Checking window emptyness");
             if (!window.isEmpty()) {
                 //start timer
-                rtTimer = new Timer(true);
-                rtTimer.schedule(new TimeoutHandler(), timeoutLength);
+                restartTimer(rtt.getRto());
             }
         } else {
             LOGGER.fine("Recieved ACK outside the window: " + ack.getSeqNum() + "(acking seq " + (ack.getSeqNum() - 1) + ")");
         }
     }
 
+    /**
+     * Process an ACK segment in selective repeat mode. The sequence number is cumulative
+     * (the next segment expected); the payload lists the blocks received out of order
+     * as pairs of little endian ints, each the first and one past the last segment.
+     * @param ack   The ACK segment to process
+     */
+    private void processSelectiveACK (Segment ack) {
+        int cumulative = ack.getSeqNum();
+        LOGGER.fine("RCV: ACK " + cumulative + " (SACK bytes: " + ack.getLength() + ")");
+
+        // slide the window past everything received in order
+        long now = System.nanoTime();
+        int acked = removeAcknowledged(cumulative, now);
+        grow(acked, now);
+        if (acked > 0) {
+            // wake up the sender waiting for window space
+            notifyAll();
+        }
+
+        // mark the blocks buffered by the receiver
+        byte[] blocks = ack.getPayload();
+        for (int i = 0; i + 8 <= blocks.length; i += 8) {
+            int start = Math.max(readInt(blocks, i), lowerWindow);
+            int end = Math.min(readInt(blocks, i + 4), upperWindow + 1);
+            for (int seq = start; seq < end; seq++) {
+                sacked.add(seq);
+            }
+        }
+
+        if (window.isEmpty()) {
+            cancelTimer();
+            return;
+        }
+
+        // resend a missing segment once enough later segments got through
+        Segment[] pending = window.toArray();
+        int later = 0;
+        for (int i = pending.length - 1; i >= 0; i--) {
+            int seq = pending[i].getSeqNum();
+            if (sacked.contains(seq)) {
+                later++;
+            } else if (later >= DUP_THRESHOLD && fastRetransmitted.add(seq)) {
+                LOGGER.fine("SND: SEQ " + seq + " (fast retransmit)");
+                resend(pending[i], now);
+                if (congestion != null && seq > recoveryPoint) {
+                    congestion.onLoss(TimeUnit.NANOSECONDS.toMillis(now));
+                    recoveryPoint = upperWindow;
+                }
+            }
+        }
+
+        if (acked > 0) {
+            restartTimer(nextDeadline(now));
+        }
+    }
+
     /**
      * Timer handler helper
      */
     public synchronized void processTimeout () {
+        if (selectiveRepeat) {
+            processSelectiveTimeout();
+            return;
+        }
         LOGGER.fine("TIMEOUT (ACK " + (segNum - windowSize) + " never received)");
         // get list of all pending segs
         Segment[] pending = window.toArray();
+        long now = System.nanoTime();
 
         // go through the list and send all segs
         for (Segment seg : pending) {
+            LOGGER.fine("SND: SEQ " + seg.getSeqNum());
+            resend(seg, now);
+        }
+        if (!window.isEmpty()) {
+            if (congestion != null) {
+                congestion.onTimeout(window.size());
+                recoveryPoint = upperWindow;
+            }
+            // start the timer, waiting twice as long as before
+            rtt.backoff();
+            restartTimer(rtt.getRto());
+        }
+    }
+
+    /**
+     * Timer handler in selective repeat mode: resend the segments that were neither
+     * acknowledged nor SACKed within the timeout, then wait for the next one to expire
+     */
+    private void processSelectiveTimeout () {
+        if (window.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long rto = TimeUnit.MILLISECONDS.toNanos(rtt.getRto());
+        boolean expired = false;
+        for (Segment seg : window.toArray()) {
+            int seq = seg.getSeqNum();
+            Long sent = sentAt.get(seq);
+            if (!sacked.contains(seq) && (sent == null || now - sent >= rto)) {
+                LOGGER.fine("TIMEOUT: SND: SEQ " + seq);
+                fastRetransmitted.remove(seq);
+                resend(seg, now);
+                expired = true;
+            }
+        }
+        if (expired) {
+            rtt.backoff();
+            if (congestion != null) {
+                congestion.onTimeout(window.size());
+                recoveryPoint = upperWindow;
+            }
+        }
+        restartTimer(nextDeadline(now));
+    }
+
+    /**
+     * Block until the window has room for another segment or, when pacing, there are
+     * retransmissions to send. ACKs wake the sender up, so no CPU is spent while the
+     * window is full.
+     * @return the number of segments the window has room for
+     */
+    private synchronized int awaitWindow () {
+        while (!windowOpen() && resendQueue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                LOGGER.severe("Interrupted waiting for the window");
+                LOGGER.severe(e.getMessage());
+                System.exit(1);
+            }
+        }
+        int limit = congestion != null ? congestion.getWindow() : windowSize;
+        return Math.max(0, Math.min(limit, window.capacity()) - window.size());
+    }
+
+    /**
+     * Block until every segment has been acknowledged or, when pacing, there are
+     * retransmissions to send
+     * @return true if the window is empty
+     */
+    private synchronized boolean awaitEmptyWindow () {
+        while (!window.isEmpty() && resendQueue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                LOGGER.severe("Interrupted waiting for the window to drain");
+                LOGGER.severe(e.getMessage());
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        return window.isEmpty();
+    }
+
+    /**
+     * Wait for the pacer to let segments go, at the rate of the current window
+     * @param wanted    The number of segments ready to send
+     * @return the number of segments that may be sent now
+     */
+    private int pace (int wanted) {
+        int limit = congestion != null ? congestion.getWindow() : windowSize;
+        // spread what is in flight (eg. a whole window resent after a timeout) over one RTT
+        pacer.setRate(Math.max(limit, window.size()), rtt.getSrtt());
+        return pacer.acquire(wanted);
+    }
+
+    /**
+     * Send the queued retransmissions from the sender thread, paced like new segments
+     */
+    private void sendQueuedResends () {
+        int queued;
+        while ((queued = queuedResends()) > 0) {
+            int count = takeResends(sendPool, pace(Math.min(BURST, queued)));
+            for (int i = 0; i < count; i++) {
+                try {
+                    udpChannel.write(sendPool[i]);
+                } catch (IOException e) {
+                    LOGGER.severe("Could not send segment");
+                    LOGGER.severe(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of retransmissions waiting for the sender thread
+     * @return the number of queued segments
+     */
+    private synchronized int queuedResends () {
+        return resendQueue.size();
+    }
+
+    /**
+     * Take queued retransmissions and build their datagrams, skipping the segments
+     * acknowledged while they waited
+     * @param datagrams The buffers to build the datagrams in
+     * @param max       The largest number of segments to take
+     * @return the number of datagrams built
+     */
+    private synchronized int takeResends (ByteBuffer[] datagrams, int max) {
+        int count = 0;
+        Iterator<Integer> it = resendQueue.iterator();
+        while (count < max && it.hasNext()) {
+            int seq = it.next();
+            it.remove();
+            if (seq >= lowerWindow && !sacked.contains(seq)) {
+                LOGGER.fine("SND: SEQ " + seq + " (paced retransmission)");
+                encapsulateSegment(new Segment(seq), datagrams[count++]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Check whether the window has room for another segment
+     * @return true if fewer segments are in flight than the (congestion) window allows
+     */
+    private synchronized boolean windowOpen () {
+        int limit = congestion != null ? congestion.getWindow() : windowSize;
+        return window.size() < limit && !window.isFull();
+    }
+
+    /**
+     * Grow the congestion window for segments that left the window, unless they
+     * were sent before the last reduction
+     * @param acked     The number of segments acknowledged
+     * @param now       The current time (System.nanoTime)
+     */
+    private void grow (int acked, long now) {
+        if (congestion != null && acked > 0 && lowerWindow > recoveryPoint) {
+            congestion.onAck(acked, TimeUnit.NANOSECONDS.toMillis(now), rtt.getSrtt());
+        }
+    }
+
+    /**
+     * Send a segment of the window again
+     * @param seg   The segment to send
+     * @param now   The current time (System.nanoTime)
+     */
+    private void resend (Segment seg, long now) {
+        if (pacer != null) {
+            // the sender thread sends it between the new segments
+            resendQueue.add(seg.getSeqNum());
+            notifyAll();
+        } else {
             try {
-                LOGGER.fine("SND: SEQ " + seg.getSeqNum());
-                udpConnection.send(encapsulateSegment(seg));
+                udpChannel.write(encapsulateSegment(seg, resendBuffer));
             } catch (IOException e) {
                 LOGGER.severe("Could not send segment");
                 LOGGER.severe(e.getMessage());
             }
         }
-        if (!window.isEmpty()) {
-            // start the timer
-            rtTimer.cancel();
-            rtTimer = new Timer(true);
-            rtTimer.schedule(new TimeoutHandler(), timeoutLength);
+        sentAt.put(seg.getSeqNum(), now);
+        retransmitted.add(seg.getSeqNum());
+    }
+
+    /**
+     * Remove the segments a cumulative ACK covers from the window in one batch
+     * @param cumulative    The sequence number of the ACK, the next segment expected
+     * @param now           The current time (System.nanoTime)
+     * @return the number of segments removed
+     */
+    private int removeAcknowledged (int cumulative, long now) {
+        Segment head = window.element();
+        if (head == null) {
+            return 0;
+        }
+        // the window holds consecutive sequence numbers starting at the head
+        int first = head.getSeqNum();
+        int removed = window.removeUpTo(cumulative);
+        for (int seq = first; seq < first + removed; seq++) {
+            acknowledge(seq, cumulative, now);
+        }
+        if (removed > 0) {
+            lowerWindow = first + removed;
+        }
+        return removed;
+    }
+
+    /**
+     * Forget a segment that left the window. The ACK that moved the window past it
+     * gives an RTT sample if it was the last segment acknowledged and was sent only once.
+     * @param seq           The segment
+     * @param cumulative    The sequence number of the ACK
+     * @param now           The current time (System.nanoTime)
+     */
+    private void acknowledge (int seq, int cumulative, long now) {
+        Long sent = sentAt.remove(seq);
+        if (seq == cumulative - 1 && sent != null && !retransmitted.contains(seq)) {
+            rtt.sample(now - sent);
+            LOGGER.finer("RTT sample " + (now - sent) / 1e6 + " ms, RTO " + rtt.getRto() + " ms");
         }
+        retransmitted.remove(seq);
+        sacked.remove(seq);
+        fastRetransmitted.remove(seq);
     }
 
-    public DatagramPacket encapsulateSegment (Segment seg) {
-        byte[] segB = seg.getBytes();
-        return new DatagramPacket(segB, segB.length, udpConnection.getInetAddress(), udpConnection.getPort());
+    /**
+     * Find how long until the oldest unSACKed segment of the window times out
+     * @param now   The current time (System.nanoTime)
+     * @return the delay (ms), at least 1
+     */
+    private long nextDeadline (long now) {
+        long rto = TimeUnit.MILLISECONDS.toNanos(rtt.getRto());
+        long deadline = now + rto;
+        for (Segment seg : window.toArray()) {
+            Long sent = sentAt.get(seg.getSeqNum());
+            if (sent != null && !sacked.contains(seg.getSeqNum())) {
+                deadline = Math.min(deadline, sent + rto);
+            }
+        }
+        // round up, so the timer never fires just before the deadline
+        return Math.max(1L, (deadline - now + 999999) / 1000000);
+    }
+
+    /**
+     * Cancel the retransmission timer and start it again
+     * @param delay     The time until it expires (ms)
+     */
+    private synchronized void restartTimer (long delay) {
+        cancelTimer();
+        rtTimer = SCHEDULER.schedule(new TimeoutHandler(timerGeneration), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the retransmission timer
+     */
+    private synchronized void cancelTimer () {
+        if (rtTimer != null) {
+            rtTimer.cancel(false);
+            rtTimer = null;
+        }
+        timerGeneration++;
+    }
+
+    /**
+     * Handle an expired timer unless it was cancelled or rearmed in the meantime
+     * @param generation    The timer generation of the handler
+     */
+    private synchronized void expire (int generation) {
+        if (generation == timerGeneration) {
+            rtTimer = null;
+            processTimeout();
+        }
+    }
+
+    /**
+     * Create the shared timer scheduler
+     * @return a scheduler with one daemon thread
+     */
+    private static ScheduledThreadPoolExecutor createScheduler () {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread t = new Thread(r, "FastFtp-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Read a little endian int, the byte order of the segment header
+     * @param b     The buffer
+     * @param off   The offset of the int
+     * @return the int
+     */
+    private static int readInt (byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Build the datagram of a segment, with its payload copied straight from the file
+     * @param seg   The segment, only its sequence number is used
+     * @param buf   The buffer to build the datagram in
+     * @return the buffer, flipped for sending
+     */
+    public ByteBuffer encapsulateSegment (Segment seg, ByteBuffer buf) {
+        int seq = seg.getSeqNum();
+        buf.clear();
+        putHeader(buf, seq);
+        segments.read(layout.offset(seq), buf, layout.size(seq));
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Put a segment header, which is little endian
+     * @param buf   The buffer
+     * @param seq   The sequence number
+     */
+    private static void putHeader (ByteBuffer buf, int seq) {
+        buf.put((byte) seq).put((byte) (seq >>> 8)).put((byte) (seq >>> 16)).put((byte) (seq >>> 24));
+    }
+
+    /**
+     * Send a path MTU probe if one is due, and start cutting segments at the
+     * largest payload found to get through so far
+     */
+    private void probeMtu () {
+        int size = prober.nextProbe(System.currentTimeMillis(), rtt.getRto());
+        if (size > 0) {
+            LOGGER.fine("SND: MTU probe of " + size + " bytes");
+            probeBuffer.limit(HEADER_SIZE + size);
+            probeBuffer.position(0);
+            try {
+                udpChannel.write(probeBuffer);
+            } catch (IOException e) {
+                // eg. larger than the local interface allows, same as a lost probe
+                LOGGER.fine("Could not send MTU probe: " + e.getMessage());
+            }
+        }
+        int payload = prober.getPayload();
+        if (payload != payloadSize) {
+            LOGGER.fine("Segment payload raised to " + payload + " bytes from segment " + segNum);
+            layout.resize(segNum, payload);
+            payloadSize = payload;
+        }
     }
 
     /**
@@ -456,6 +1120,38 @@ public class FastFtp {
         String fileName = "";
         int serverPort = 0;
 
+        // "-s" selects selective repeat, for receivers that send SACKs;
+        // "-c reno" or "-c cubic" grows the window up to maxWindowSize;
+        // "-p 1.25" paces the segments at 1.25 times window / RTT;
+        // "-m 8968" asks the receiver for payloads of up to 8968 bytes,
+        // and "-u" probes the path for the largest of them that gets through
+        boolean selectiveRepeat = false;
+        double pacingGain = 0;
+        int payload = 0;
+        boolean probe = false;
+        CongestionWindow.Algorithm algorithm = null;
+        int maxWindowSize = 1000; //segments
+        while (args.length > 0 && args[0].startsWith("-")) {
+            if (args[0].equals("-s")) {
+                selectiveRepeat = true;
+                args = Arrays.copyOfRange(args, 1, args.length);
+            } else if (args[0].equals("-c") && args.length > 1) {
+                algorithm = CongestionWindow.Algorithm.valueOf(args[1].toUpperCase());
+                args = Arrays.copyOfRange(args, 2, args.length);
+            } else if (args[0].equals("-p") && args.length > 1) {
+                pacingGain = Double.parseDouble(args[1]);
+                args = Arrays.copyOfRange(args, 2, args.length);
+            } else if (args[0].equals("-m") && args.length > 1) {
+                payload = Integer.parseInt(args[1]);
+                args = Arrays.copyOfRange(args, 2, args.length);
+            } else if (args[0].equals("-u")) {
+                probe = true;
+                args = Arrays.copyOfRange(args, 1, args.length);
+            } else {
+                break;
+            }
+        }
+
         // check for command line arguments
         if (args.length == 3) {
             // either provide 3 paramaters
@@ -468,13 +1164,15 @@ public class FastFtp {
             fileName = args[1];
         } else {
             System.out.println("wrong number of arguments, try again.");
-            System.out.println("usage: java FastFtp [serverName] <serverPort> <fileName>");
+            System.out.println("usage: java FastFtp [-s] [-c reno|cubic] [-p gain] [-m payload [-u]] [serverName] <serverPort> <fileName>");
             System.exit(0);
         }
         LOGGER.fine("Arguments OK");
 
         LOGGER.fine("Starting FastFtp with windowSize:" + windowSize + ", timeout:" + timeout);
-        FastFtp ftp = new FastFtp(windowSize, timeout);
+        FastFtp ftp = new FastFtp(windowSize, maxWindowSize, timeout, selectiveRepeat, algorithm);
+        ftp.setPacing(pacingGain);
+        ftp.setSegmentSize(payload, probe);
 
         System.out.printf("sending file \'%s\' to server...\n", fileName);
         ftp.send(serverName, serverPort, fileName);
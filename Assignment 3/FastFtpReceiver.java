@@ -0,0 +1,327 @@
+
+import java.io.*;
+import java.util.logging.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.DatagramSocket;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import cpsc441.a3.Segment;
+
+/**
+ * FastFtpReceiver Class
+ *
+ * The receiving end of FastFtp, speaking the same protocol as the course server:
+ * the file name arrives over TCP and is confirmed with a 0 byte, the segments arrive
+ * over UDP on the same port number, and a 0 byte over TCP ends the transfer.
+ *
+ * Segments that arrive out of order are buffered instead of dropped. Each ACK carries
+ * the next segment expected (as the course server does) and, in its payload, up to
+ * MAX_SACK_BLOCKS blocks of buffered segments as pairs of little endian ints: the
+ * first segment of the block and one past its last. Go-Back-N senders ignore the payload.
+ *
+ * After the handshake a sender may ask for larger segments with the byte
+ * SEGMENT_SIZE_REQUEST, the payload size it wants and its largest window in segments
+ * (ints); the reply is the size agreed and the receive buffer granted in bytes (ints).
+ * The receive buffer is sized to hold a whole window, and the size agreed is capped
+ * so that it does. Path MTU probes (sequence number MtuProber.PROBE_SEQ) are answered
+ * with an ACK of the same sequence number carrying the probe's payload size.
+ *
+ */
+public class FastFtpReceiver {
+    /**
+     * Logging framework
+     */
+    private static final Logger LOGGER = Logger.getLogger(FastFtpReceiver.class.getName());
+
+    /**
+     * Largest number of SACK blocks in one ACK
+     */
+    public static final int MAX_SACK_BLOCKS = 32;
+
+    /**
+     * Control byte asking for a larger segment payload, the only byte besides 0 (the end)
+     */
+    public static final int SEGMENT_SIZE_REQUEST = 1;
+
+    /**
+     * Largest payload of a segment: the largest UDP datagram less the header (bytes)
+     */
+    public static final int MAX_PAYLOAD_SIZE = 65507 - 4;
+
+    /**
+     * Size of the segment header (bytes)
+     */
+    private static final int HEADER_SIZE = Segment.MAX_SEGMENT_SIZE - Segment.MAX_PAYLOAD_SIZE;
+
+    /**
+     * Number of segments past the next expected one that are buffered
+     */
+    private static final int MAX_BUFFERED = 4096;
+
+    /**
+     * Port for both the control and the data socket
+     */
+    private int port;
+
+    /**
+     * Directory the received files are written to
+     */
+    private File directory;
+
+    /**
+     * Probability of dropping an arriving segment, to test recovery
+     */
+    private double loss;
+
+    /**
+     * Source of the simulated losses
+     */
+    private Random random = new Random();
+
+    /**
+     * Default constructor
+     *
+     * @param port		Port for the control and the data socket
+     * @param directory	Directory the received files are written to
+     * @param loss		Probability of dropping an arriving segment, 0 for none
+     */
+    public FastFtpReceiver (int port, File directory, double loss) {
+        this.port = port;
+        this.directory = directory;
+        this.loss = loss;
+    }
+
+    /**
+     * Receive files one transfer at a time, forever
+     */
+    public void serve () throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        while (true) {
+            Socket control = server.accept();
+            try {
+                receive(control);
+            } catch (IOException e) {
+                LOGGER.severe("Transfer failed");
+                LOGGER.severe(e.getMessage());
+            } finally {
+                control.close();
+            }
+        }
+    }
+
+    /**
+     * Receive one file
+     *
+     * @param control	The control connection of the transfer
+     */
+    public void receive (Socket control) throws IOException {
+        DataInputStream tcpIn = new DataInputStream(control.getInputStream());
+        DataOutputStream tcpOut = new DataOutputStream(control.getOutputStream());
+
+        // handshake: only the last path component is used, files stay in the directory
+        String fileName = new File(tcpIn.readUTF()).getName();
+        File out = new File(directory, fileName);
+        final DatagramSocket udpConnection = new DatagramSocket(port);
+        OutputStream fos = new BufferedOutputStream(new FileOutputStream(out), 64 * 1024);
+        tcpOut.writeByte(0);
+        tcpOut.flush();
+        LOGGER.info("Receiving " + fileName + " from " + control.getRemoteSocketAddress());
+
+        // the sender ends the transfer over TCP once every segment is acknowledged
+        final DataInputStream end = tcpIn;
+        final DataOutputStream reply = tcpOut;
+        Thread watcher = new Thread() {
+            public void run () {
+                try {
+                    while (end.readByte() == SEGMENT_SIZE_REQUEST) {
+                        int size = Math.max(Segment.MAX_PAYLOAD_SIZE, Math.min(end.readInt(), MAX_PAYLOAD_SIZE));
+                        int window = Math.max(1, end.readInt());
+                        // a burst of a whole window that does not fit in the buffer is partly dropped
+                        long wanted = (long) window * (HEADER_SIZE + size);
+                        if (udpConnection.getReceiveBufferSize() < wanted) {
+                            udpConnection.setReceiveBufferSize((int) Math.min(Integer.MAX_VALUE, wanted));
+                        }
+                        int buffer = udpConnection.getReceiveBufferSize();
+                        size = Math.max(Segment.MAX_PAYLOAD_SIZE, Math.min(size, buffer / window - HEADER_SIZE));
+                        LOGGER.info("Segment payload of up to " + size + " bytes, receive buffer of " + buffer + " bytes");
+                        reply.writeInt(size);
+                        reply.writeInt(buffer);
+                        reply.flush();
+                    }
+                } catch (IOException e) {
+                    LOGGER.warning("Control connection closed: " + e.getMessage());
+                }
+                udpConnection.close();
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+
+        int expected = 0;
+        long bytes = 0;
+        TreeMap<Integer, byte[]> buffered = new TreeMap<Integer, byte[]>();
+        // room for the largest payload a sender may have agreed on
+        byte[] data = new byte[HEADER_SIZE + MAX_PAYLOAD_SIZE];
+        DatagramPacket pkt = new DatagramPacket(data, data.length);
+        try {
+            while (true) {
+                try {
+                    pkt.setLength(data.length);
+                    udpConnection.receive(pkt);
+                } catch (SocketException e) {
+                    // closed by the watcher, the transfer is over
+                    break;
+                }
+                if (loss > 0 && random.nextDouble() < loss) {
+                    continue;
+                }
+                if (pkt.getLength() < HEADER_SIZE) {
+                    // too short to hold a sequence number; data still holds the previous datagram
+                    continue;
+                }
+                // Segment only holds the default payload size, so read the header here
+                int seq = readInt(data, 0);
+                int length = pkt.getLength() - HEADER_SIZE;
+                if (seq == MtuProber.PROBE_SEQ) {
+                    byte[] size = new byte[4];
+                    writeInt(size, 0, length);
+                    byte[] ack = new Segment(MtuProber.PROBE_SEQ, size).getBytes();
+                    udpConnection.send(new DatagramPacket(ack, ack.length, pkt.getSocketAddress()));
+                    continue;
+                }
+                if (seq == expected) {
+                    fos.write(data, HEADER_SIZE, length);
+                    bytes += length;
+                    expected++;
+                    // deliver what was waiting for this segment
+                    byte[] next;
+                    while ((next = buffered.remove(expected)) != null) {
+                        fos.write(next);
+                        bytes += next.length;
+                        expected++;
+                    }
+                } else if (seq > expected && seq - expected < MAX_BUFFERED) {
+                    buffered.put(seq, Arrays.copyOfRange(data, HEADER_SIZE, HEADER_SIZE + length));
+                }
+                sendAck(udpConnection, pkt.getSocketAddress(), expected, buffered);
+            }
+        } finally {
+            fos.close();
+            udpConnection.close();
+        }
+        LOGGER.info("Received " + fileName + ": " + bytes + " bytes in " + expected + " segments");
+    }
+
+    /**
+     * Send a cumulative ACK with the SACK blocks of the buffered segments
+     *
+     * @param conn		The data socket
+     * @param dest		The sender
+     * @param expected	The next segment expected in order
+     * @param buffered	The segments received out of order
+     */
+    private void sendAck (DatagramSocket conn, SocketAddress dest, int expected, TreeMap<Integer, byte[]> buffered) throws IOException {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        int count = 0;
+        int start = -1;
+        int last = -1;
+        for (Map.Entry<Integer, byte[]> e : buffered.entrySet()) {
+            int seq = e.getKey();
+            if (start != -1 && seq != last + 1) {
+                writeBlock(blocks, start, last + 1);
+                if (++count == MAX_SACK_BLOCKS) {
+                    start = -1;
+                    break;
+                }
+                start = seq;
+            } else if (start == -1) {
+                start = seq;
+            }
+            last = seq;
+        }
+        if (start != -1) {
+            writeBlock(blocks, start, last + 1);
+        }
+
+        byte[] ack = new Segment(expected, blocks.toByteArray()).getBytes();
+        conn.send(new DatagramPacket(ack, ack.length, dest));
+    }
+
+    /**
+     * Append a SACK block
+     *
+     * @param out	The block list
+     * @param start	The first segment of the block
+     * @param end	One past the last segment of the block
+     */
+    private static void writeBlock (ByteArrayOutputStream out, int start, int end) {
+        for (int v : new int[] {start, end}) {
+            out.write(v);
+            out.write(v >>> 8);
+            out.write(v >>> 16);
+            out.write(v >>> 24);
+        }
+    }
+
+    /**
+     * Read a little endian int, the byte order of the segment header
+     *
+     * @param b		The buffer
+     * @param off	The offset of the int
+     * @return the int
+     */
+    private static int readInt (byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Write a little endian int
+     *
+     * @param b		The buffer
+     * @param off	The offset of the int
+     * @param v		The int
+     */
+    private static void writeInt (byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    /**
+     * A simple driver
+     */
+    public static void main (String[] args) throws IOException {
+        LOGGER.setLevel(Level.INFO);
+
+        int port = 2225;
+        String directory = "received";
+        double loss = 0.0;
+
+        // check for command line arguments
+        if (args.length >= 1) {
+            port = Integer.parseInt(args[0]);
+        }
+        if (args.length >= 2) {
+            directory = args[1];
+        }
+        if (args.length >= 3) {
+            loss = Double.parseDouble(args[2]);
+        }
+        if (args.length > 3) {
+            System.out.println("usage: java FastFtpReceiver [port] [directory] [loss]");
+            System.exit(0);
+        }
+
+        File dir = new File(directory);
+        dir.mkdirs();
+        System.out.println("receiving files into " + dir + " on port " + port + " (loss " + loss + ")");
+        new FastFtpReceiver(port, dir, loss).serve();
+    }
+}
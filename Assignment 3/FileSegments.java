@@ -0,0 +1,103 @@
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileSegments Class
+ *
+ * Read-only view of the file a FastFtp sender transfers. The file is mapped into
+ * memory in regions of at most REGION_SIZE bytes, and segment payloads are copied
+ * straight from the mapping into the (direct) buffer of the datagram being built,
+ * so sending or resending a segment costs one copy and no allocation.
+ *
+ */
+public class FileSegments implements Closeable {
+    /**
+     * Largest mapped region (bytes); a MappedByteBuffer is indexed by int
+     */
+    private static final long REGION_SIZE = 1L << 30;
+
+    /**
+     * The open file
+     */
+    private RandomAccessFile raf;
+
+    /**
+     * The mapped regions, in file order
+     */
+    private MappedByteBuffer[] regions;
+
+    /**
+     * Length of the file (bytes)
+     */
+    private long length;
+
+    /**
+     * Constructor
+     *
+     * @param file	The file to map
+     */
+    public FileSegments (File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            regions = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the length of the file
+     *
+     * @return the length (bytes)
+     */
+    public long length () {
+        return length;
+    }
+
+    /**
+     * Copy a slice of the file into a buffer, stopping early at the end of the file
+     * or of the buffer
+     *
+     * @param offset	Position of the slice in the file
+     * @param dst		The buffer to copy into, from its position
+     * @param len		Length of the slice (bytes)
+     * @return the number of bytes copied
+     */
+    public synchronized int read (long offset, ByteBuffer dst, int len) {
+        int copied = 0;
+        len = (int) Math.max(0, Math.min(Math.min(len, dst.remaining()), length - offset));
+        while (copied < len) {
+            // a slice can cross from one region into the next
+            MappedByteBuffer region = regions[(int) (offset / REGION_SIZE)];
+            int pos = (int) (offset % REGION_SIZE);
+            int n = Math.min(len - copied, region.capacity() - pos);
+            region.limit(pos + n);
+            region.position(pos);
+            dst.put(region);
+            region.limit(region.capacity());
+            copied += n;
+            offset += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Close the file; the mapping is released once it is garbage collected
+     */
+    public void close () throws IOException {
+        raf.close();
+    }
+}
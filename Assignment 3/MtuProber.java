@@ -0,0 +1,118 @@
+
+/**
+ * MtuProber Class
+ *
+ * Packetization layer path MTU discovery for FastFtp, after RFC 4821: the largest
+ * payload that gets through is found by a binary search between a size known to
+ * work and the largest size agreed with the receiver. Each probe is a datagram with
+ * sequence number PROBE_SEQ padded to the size being tried, which the receiver
+ * echoes back without delivering it; data segments are never used as probes, so a
+ * probe lost to a too small MTU costs nothing but the probe.
+ *
+ * A size that goes unanswered MAX_PROBES times is taken as too large.
+ *
+ */
+public class MtuProber {
+    /**
+     * Sequence number of probes and of their replies; Segment rejects negative
+     * ones, and a transfer would need 2 TB of default segments to reach this one
+     */
+    public static final int PROBE_SEQ = Integer.MAX_VALUE;
+
+    /**
+     * Times a size is probed before it is given up on
+     */
+    private static final int MAX_PROBES = 2;
+
+    /**
+     * The search stops once the bounds are this close (bytes)
+     */
+    private static final int GRANULARITY = 32;
+
+    /**
+     * Largest payload known to get through (bytes)
+     */
+    private int low;
+
+    /**
+     * Largest payload that may still get through (bytes)
+     */
+    private int high;
+
+    /**
+     * Payload of the outstanding probe (bytes), 0 if none
+     */
+    private int probing = 0;
+
+    /**
+     * When the outstanding probe is given up on (ms)
+     */
+    private long deadline;
+
+    /**
+     * Number of probes of the current size without a reply
+     */
+    private int attempts = 0;
+
+    /**
+     * Constructor
+     *
+     * @param low	Payload known to get through (bytes)
+     * @param high	Largest payload to try (bytes)
+     */
+    public MtuProber (int low, int high) {
+        this.low = low;
+        this.high = Math.max(low, high);
+    }
+
+    /**
+     * Decide whether to send a probe now
+     *
+     * @param now		The current time (ms)
+     * @param timeout	How long to wait for the reply (ms)
+     * @return the payload of the probe to send (bytes), or 0 to send none
+     */
+    public synchronized int nextProbe (long now, long timeout) {
+        if (probing != 0) {
+            if (now < deadline) {
+                return 0;
+            }
+            // no reply in time
+            if (++attempts >= MAX_PROBES) {
+                high = probing - 1;
+                attempts = 0;
+            }
+            probing = 0;
+        }
+        if (high - low < GRANULARITY) {
+            return 0;
+        }
+        probing = low + (high - low + 1) / 2;
+        deadline = now + timeout;
+        return probing;
+    }
+
+    /**
+     * Record the reply to a probe
+     *
+     * @param size	The payload of the probe the receiver got (bytes)
+     */
+    public synchronized void onReply (int size) {
+        if (size > low && size <= high) {
+            low = size;
+        }
+        if (size == probing) {
+            probing = 0;
+            attempts = 0;
+        }
+    }
+
+    /**
+     * Get the payload for new segments
+     *
+     * @return the largest payload known to get through (bytes)
+     */
+    public synchronized int getPayload () {
+        return low;
+    }
+}
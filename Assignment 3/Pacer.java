@@ -0,0 +1,93 @@
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pacer Class
+ *
+ * Spaces the datagrams of a FastFtp sender evenly over a round trip instead of
+ * sending a whole window back to back. The rate is gain * window / SRTT; with a gain
+ * above 1 the pacer never holds the window back, it only smooths the bursts. At most
+ * QUANTUM segments go out together after an idle period.
+ *
+ * Waits park the thread for most of the gap and spin for the last SPIN_NANOS, since
+ * a parked thread wakes up tens of microseconds late. Use it from one thread only.
+ *
+ */
+public class Pacer {
+    /**
+     * Segments that may be sent back to back
+     */
+    private static final int QUANTUM = 2;
+
+    /**
+     * Remaining wait (ns) below which the pacer spins instead of parking
+     */
+    private static final long SPIN_NANOS = 50000;
+
+    /**
+     * Multiple of window / SRTT to send at
+     */
+    private double gain;
+
+    /**
+     * Time between segments (ns), 0 to send without pacing
+     */
+    private long interval = 0;
+
+    /**
+     * Earliest time the next segment may be sent (System.nanoTime)
+     */
+    private long next = System.nanoTime();
+
+    /**
+     * Constructor
+     *
+     * @param gain	Multiple of window / SRTT to send at
+     */
+    public Pacer (double gain) {
+        if (gain <= 0) {
+            throw new IllegalArgumentException("Pacing gain must be positive: " + gain);
+        }
+        this.gain = gain;
+    }
+
+    /**
+     * Set the rate from the current window and round trip time
+     *
+     * @param window	The number of segments allowed in flight
+     * @param srtt		The smoothed round trip time (ms), or -1 if unknown to send without pacing
+     */
+    public void setRate (int window, double srtt) {
+        interval = srtt <= 0 ? 0 : (long) (srtt * 1e6 / (Math.max(1, window) * gain));
+    }
+
+    /**
+     * Wait until at least one segment may be sent
+     *
+     * @param wanted	The number of segments ready to send
+     * @return the number of segments that may be sent now, between 1 and wanted
+     */
+    public int acquire (int wanted) {
+        long now = System.nanoTime();
+        if (interval == 0 || wanted <= 0) {
+            next = now;
+            return wanted;
+        }
+        // credit for an idle period is capped at one quantum
+        long earliest = now - (QUANTUM - 1) * interval;
+        if (next < earliest) {
+            next = earliest;
+        }
+        while (next - now > SPIN_NANOS) {
+            LockSupport.parkNanos(next - now - SPIN_NANOS);
+            now = System.nanoTime();
+        }
+        while (next - now > 0) {
+            Thread.onSpinWait();
+            now = System.nanoTime();
+        }
+        int n = (int) Math.min(wanted, (now - next) / interval + 1);
+        next += n * interval;
+        return n;
+    }
+}
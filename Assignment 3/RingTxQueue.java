@@ -0,0 +1,161 @@
+import cpsc441.a3.Segment;
+
+/**
+ * RingTxQueue Class
+ *
+ * A version of TxQueue backed by a ring buffer, with removeUpTo to drop every
+ * segment a cumulative ACK covers in one step instead of one remove() per segment.
+ * All methods synchronize on the queue. FastFtp only calls it while holding its
+ * own monitor, so in practice the queue's lock is never contended. Nothing blocks:
+ * offer fails on a full queue and FastFtp waits for window space on its own monitor.
+ *
+ */
+public class RingTxQueue {
+    /**
+     * The ring, its size is a power of two
+     */
+    private final Segment[] ring;
+
+    /**
+     * Index mask for the ring
+     */
+    private final int mask;
+
+    /**
+     * The capacity of the queue, at most the size of the ring
+     */
+    private final int capacity;
+
+    /**
+     * Head (next segment to remove) and tail (next free slot) as ever increasing counters
+     */
+    private long head = 0;
+    private long tail = 0;
+
+    /**
+     * Constructor
+     *
+     * Creates a queue with the given capacity.
+     *
+     * @param capacity	The capacity of the queue
+     */
+    public RingTxQueue (int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        ring = new Segment[size];
+        mask = size - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a segment at the tail of the queue if there is space.
+     *
+     * @param seg	The segment to be added to the queue
+     * @return true if the segment was added, false if the queue is full
+     */
+    public synchronized boolean offer (Segment seg) {
+        if (tail - head >= capacity) {
+            return false;
+        }
+        ring[(int) tail & mask] = seg;
+        tail++;
+        return true;
+    }
+
+    /**
+     * Returns the segment at the head of the queue, but does not remove it.
+     *
+     * @return	The segment at the front of the queue, or null if the queue is empty
+     */
+    public synchronized Segment element () {
+        return head == tail ? null : ring[(int) head & mask];
+    }
+
+    /**
+     * Removes and returns the segment at the head of the queue.
+     *
+     * @return	The segment at the front of the queue, or null if the queue is empty
+     */
+    public synchronized Segment remove () {
+        if (head == tail) {
+            return null;
+        }
+        int slot = (int) head & mask;
+        Segment seg = ring[slot];
+        // do not keep acknowledged segments reachable
+        ring[slot] = null;
+        head++;
+        return seg;
+    }
+
+    /**
+     * Removes every segment at the head of the queue with a sequence number below seq,
+     * as acknowledged by a cumulative ACK for seq.
+     *
+     * @param seq	The sequence number of the first segment to keep
+     * @return	The number of segments removed
+     */
+    public synchronized int removeUpTo (int seq) {
+        long first = head;
+        while (head != tail && ring[(int) head & mask].getSeqNum() < seq) {
+            ring[(int) head & mask] = null;
+            head++;
+        }
+        return (int) (head - first);
+    }
+
+    /**
+     * Returns an array of segments in the queue.
+     * This array can be used to iterate over the segments in the queue.
+     *
+     * @return An array contaning all queue segments
+     */
+    public synchronized Segment[] toArray () {
+        Segment[] temp = new Segment[(int) (tail - head)];
+        for (int i = 0; i < temp.length; i++) {
+            temp[i] = ring[(int) (head + i) & mask];
+        }
+        return temp;
+    }
+
+    /**
+     * Returns the number of segments in the queue.
+     *
+     * @return 	The number of segments in the queue
+     */
+    public synchronized int size () {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Checks if the queue is empty.
+     *
+     * @return 	true if the queue is empty, false otherwise
+     */
+    public synchronized boolean isEmpty () {
+        return head == tail;
+    }
+
+    /**
+     * Returns the capacity of the queue.
+     *
+     * @return 	The largest number of segments the queue holds
+     */
+    public int capacity () {
+        return capacity;
+    }
+
+    /**
+     * Checks if the queue is full.
+     *
+     * @return 	true if the queue is full, false otherwise
+     */
+    public synchronized boolean isFull () {
+        return tail - head >= capacity;
+    }
+}
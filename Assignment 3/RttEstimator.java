@@ -0,0 +1,122 @@
+
+/**
+ * RttEstimator Class
+ *
+ * Retransmission timeout estimation as in RFC 6298 (Jacobson/Karels): a smoothed
+ * round trip time and its mean deviation are updated from each sample, and the
+ * timeout is SRTT + 4 * RTTVAR, kept within fixed bounds. Every timeout doubles the
+ * current value until the next valid sample. Callers apply Karn's rule by only
+ * sampling segments that were sent once.
+ *
+ * Samples are taken in nanoseconds and SRTT and RTTVAR are kept as fractional
+ * milliseconds, so round trips well under a millisecond (eg. on a LAN) still count.
+ *
+ */
+public class RttEstimator {
+    /**
+     * Gain of the smoothed RTT (1/8) and of the deviation (1/4), as shifts
+     */
+    private static final int ALPHA_SHIFT = 3;
+    private static final int BETA_SHIFT = 2;
+
+    /**
+     * Granularity of the retransmission timer (ms)
+     */
+    private static final long GRANULARITY = 1;
+
+    /**
+     * Smoothed round trip time (ms), -1 before the first sample
+     */
+    private double srtt = -1;
+
+    /**
+     * Round trip time variation (ms)
+     */
+    private double rttvar;
+
+    /**
+     * Current retransmission timeout (ms)
+     */
+    private long rto;
+
+    /**
+     * Bounds of the retransmission timeout (ms)
+     */
+    private long minRto;
+    private long maxRto;
+
+    /**
+     * Constructor
+     *
+     * @param initialRto	Timeout used until the first sample (ms)
+     * @param minRto		Smallest timeout (ms)
+     * @param maxRto		Largest timeout, also for backoff (ms)
+     */
+    public RttEstimator (long initialRto, long minRto, long maxRto) {
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+        rto = clamp(initialRto);
+    }
+
+    /**
+     * Add a round trip time measurement of a segment that was not retransmitted
+     *
+     * @param rttNanos	The time from sending the segment to receiving its ACK (ns)
+     */
+    public synchronized void sample (long rttNanos) {
+        double rtt = rttNanos / 1e6;
+        if (srtt < 0) {
+            // first measurement
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / (1 << BETA_SHIFT);
+            srtt += (rtt - srtt) / (1 << ALPHA_SHIFT);
+        }
+        rto = clamp((long) Math.ceil(srtt + Math.max(GRANULARITY, 4 * rttvar)));
+    }
+
+    /**
+     * Double the timeout after a retransmission timeout
+     */
+    public synchronized void backoff () {
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * Get the retransmission timeout
+     *
+     * @return the timeout (ms)
+     */
+    public synchronized long getRto () {
+        return rto;
+    }
+
+    /**
+     * Get the smoothed round trip time
+     *
+     * @return the smoothed RTT (ms), or -1 before the first sample
+     */
+    public synchronized double getSrtt () {
+        return srtt;
+    }
+
+    /**
+     * Get the round trip time variation
+     *
+     * @return the RTT variation (ms)
+     */
+    public synchronized double getRttVar () {
+        return rttvar;
+    }
+
+    /**
+     * Keep a timeout within the bounds
+     *
+     * @param value	The timeout (ms)
+     * @return the bounded timeout (ms)
+     */
+    private long clamp (long value) {
+        return Math.max(minRto, Math.min(maxRto, value));
+    }
+}
@@ -0,0 +1,110 @@
+
+import java.util.ArrayList;
+
+/**
+ * SegmentLayout Class
+ *
+ * Maps the sequence numbers of a FastFtp transfer to their slices of the file when
+ * the payload size changes during the transfer. Segments are cut in order, so the
+ * layout is a list of runs: from a first sequence number on, every segment holds the
+ * same number of bytes until the next run starts. Retransmissions look their slice
+ * up here and resend exactly the bytes the segment first carried.
+ *
+ */
+public class SegmentLayout {
+    /**
+     * A run of segments of the same size
+     */
+    private static class Run {
+        /** first segment of the run */
+        int seq;
+        /** file offset of the first segment */
+        long offset;
+        /** payload of each segment (bytes) */
+        int size;
+
+        Run (int seq, long offset, int size) {
+            this.seq = seq;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The runs, by increasing sequence number
+     */
+    private ArrayList<Run> runs = new ArrayList<Run>();
+
+    /**
+     * Constructor
+     *
+     * @param size	Payload of the segments from sequence number 0 on (bytes)
+     */
+    public SegmentLayout (int size) {
+        runs.add(new Run(0, 0, size));
+    }
+
+    /**
+     * Change the payload of the segments from a sequence number on. The segments
+     * before it must not change, so call it before cutting segment seq.
+     *
+     * @param seq	The first segment with the new size
+     * @param size	The new payload size (bytes)
+     */
+    public synchronized void resize (int seq, int size) {
+        Run last = runs.get(runs.size() - 1);
+        if (seq < last.seq) {
+            throw new IllegalArgumentException("Segment " + seq + " was already cut");
+        }
+        if (size == last.size) {
+            return;
+        }
+        Run run = new Run(seq, last.offset + (long) (seq - last.seq) * last.size, size);
+        if (seq == last.seq) {
+            runs.set(runs.size() - 1, run);
+        } else {
+            runs.add(run);
+        }
+    }
+
+    /**
+     * Get the position of a segment in the file
+     *
+     * @param seq	The segment
+     * @return the file offset of its first byte
+     */
+    public synchronized long offset (int seq) {
+        Run run = find(seq);
+        return run.offset + (long) (seq - run.seq) * run.size;
+    }
+
+    /**
+     * Get the payload size of a segment; the last segment of the file may be shorter
+     *
+     * @param seq	The segment
+     * @return the payload size (bytes)
+     */
+    public synchronized int size (int seq) {
+        return find(seq).size;
+    }
+
+    /**
+     * Find the run a segment belongs to
+     *
+     * @param seq	The segment
+     * @return the last run starting at or before seq
+     */
+    private Run find (int seq) {
+        int lo = 0;
+        int hi = runs.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (runs.get(mid).seq <= seq) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return runs.get(lo);
+    }
+}